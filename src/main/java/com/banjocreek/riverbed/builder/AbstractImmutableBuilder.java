@@ -17,28 +17,199 @@
  */
 package com.banjocreek.riverbed.builder;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import com.banjocreek.riverbed.builder.codec.DeltaCodec;
+import com.banjocreek.riverbed.builder.codec.HistoryInput;
+import com.banjocreek.riverbed.builder.codec.HistoryOutput;
 
 public abstract class AbstractImmutableBuilder<T, D, R, P> implements
         ImmutableBuilder<R, P> {
 
-    private final Optional<Link> head;
+    /**
+     * <p>
+     * Build many builders at once. Builders that descend from the same root
+     * usually share most of their history. When the lineage keeps
+     * {@link ImmutableOptions#withCheckpoints(java.util.function.UnaryOperator, int)
+     * checkpoints}, each shared delta is applied once and the state is copied
+     * where histories diverge, so the total work is proportional to the number
+     * of distinct deltas in the batch rather than the sum of history lengths.
+     * </p>
+     * <p>
+     * Builders from lineages without a state copier are built one at a time.
+     * </p>
+     *
+     * @param builders
+     *            builders to build.
+     *
+     * @return results of {@link #build()}, in iteration order of the
+     *         argument.
+     */
+    public static <T, D, R> List<R> buildAll(
+            final Collection<? extends AbstractImmutableBuilder<T, D, R, ?>> builders) {
+
+        @SuppressWarnings("unchecked")
+        final R[] results = (R[]) new Object[builders.size()];
+
+        final IdentityHashMap<Lineage<T, D, R, ?>, List<Integer>> byLineage = new IdentityHashMap<>();
+        final ArrayList<AbstractImmutableBuilder<T, D, R, ?>> indexed = new ArrayList<>(
+                builders);
+        for (int i = 0; i < indexed.size(); ++i) {
+            byLineage.computeIfAbsent(indexed.get(i).lineage,
+                    k -> new ArrayList<>()).add(i);
+        }
+
+        byLineage.forEach((lineage, indices) -> {
+            if (!lineage.options.checkpoints()) {
+                indices.forEach(i -> results[i] = indexed.get(i).build());
+            } else {
+                buildShared(lineage, indexed, indices, results);
+            }
+        });
+
+        return Arrays.asList(results);
+    }
+
+    /*
+     * Fold the tree formed by the histories of the indexed builders depth
+     * first, copying state only where histories diverge.
+     */
+    private static <T, D, R> void buildShared(
+            final Lineage<T, D, R, ?> lineage,
+            final List<AbstractImmutableBuilder<T, D, R, ?>> builders,
+            final List<Integer> indices, final R[] results) {
+
+        final IdentityHashMap<Link<T, D>, List<Integer>> heads = new IdentityHashMap<>();
+        final IdentityHashMap<Link<T, D>, List<Link<T, D>>> children = new IdentityHashMap<>();
+        final ArrayList<Link<T, D>> roots = new ArrayList<>();
+
+        for (final int i : indices) {
+            final AbstractImmutableBuilder<T, D, R, ?> b = builders.get(i);
+            Link<T, D> l = b.head;
+            if (l == null) {
+                results[i] = b.build();
+                continue;
+            }
+            final boolean seen = heads.containsKey(l)
+                    || children.containsKey(l);
+            heads.computeIfAbsent(l, k -> new ArrayList<>()).add(i);
+            while (!seen) {
+                if (l.checkpoint != null || l.previous == null) {
+                    roots.add(l);
+                    break;
+                }
+                final Link<T, D> parent = l.previous;
+                final boolean known = heads.containsKey(parent)
+                        || children.containsKey(parent);
+                children.computeIfAbsent(parent, k -> new ArrayList<>())
+                        .add(l);
+                if (known) {
+                    break;
+                }
+                l = parent;
+            }
+        }
+
+        final ArrayDeque<Link<T, D>> links = new ArrayDeque<>();
+        final ArrayDeque<T> states = new ArrayDeque<>();
+        for (final Link<T, D> root : roots) {
+            links.push(root);
+            states.push(root.checkpoint != null ? lineage.options
+                    .copy(root.checkpoint) : lineage.apply(
+                    lineage.initializer.get(), root));
+        }
+
+        while (!links.isEmpty()) {
+            final Link<T, D> l = links.pop();
+            final T state = states.pop();
+            final List<Integer> hs = heads.getOrDefault(l,
+                    Collections.emptyList());
+            final List<Link<T, D>> cs = children.getOrDefault(l,
+                    Collections.emptyList());
+            int remaining = hs.size() + cs.size();
+            for (final int i : hs) {
+                final R built = lineage.construct(lineage.rootConstructor,
+                        --remaining == 0 ? state : lineage.options
+                                .copy(state));
+                results[i] = lineage.options.memoizes() ? builders.get(i)
+                        .side().root(() -> built) : built;
+            }
+            for (final Link<T, D> c : cs) {
+                links.push(c);
+                states.push(lineage.apply(--remaining == 0 ? state
+                        : lineage.options.copy(state), c));
+            }
+        }
+
+    }
+
+    /*
+     * Constructors running on this thread. A fold inside a constructor is the
+     * build of a nested child, which is usually repeated.
+     */
+    private static final ThreadLocal<int[]> NESTING = ThreadLocal
+            .withInitial(() -> new int[1]);
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<AbstractImmutableBuilder, Side> SIDE = AtomicReferenceFieldUpdater
+            .newUpdater(AbstractImmutableBuilder.class, Side.class, "side");
 
-    private final Function<Optional<Link>, T> merge;
+    /*
+     * Most recent delta, or null for a root builder.
+     */
+    private final Link<T, D> head;
 
-    private final Function<T, P> parentConstructor;
+    private final Lineage<T, D, R, P> lineage;
 
-    private final Function<T, R> rootConstructor;
+    /*
+     * Memoized results and asynchronous builds, created on first use. Plain
+     * synchronous builds never create it.
+     */
+    private volatile Side<R, P> side;
 
     protected AbstractImmutableBuilder(
             final AbstractImmutableBuilder<T, D, R, P> previous, final D delta) {
-        this.merge = previous.merge;
-        this.parentConstructor = previous.parentConstructor;
-        this.rootConstructor = previous.rootConstructor;
-        this.head = Optional.of(new Link(delta, previous.head));
+        this.lineage = previous.lineage;
+        this.head = this.lineage.link(previous.head, delta, true);
+
+    }
+
+    /**
+     * Derive a builder by applying several deltas in order, e.g. a history
+     * read by {@link HistoryInput#readHistory(DeltaCodec)}. The deltas are
+     * linked as given, without coalescing, so a history written by
+     * {@link #writeHistory(HistoryOutput, DeltaCodec)} is restored exactly.
+     *
+     * @param previous
+     *            builder to derive from.
+     * @param deltas
+     *            deltas to apply, oldest first.
+     */
+    protected AbstractImmutableBuilder(
+            final AbstractImmutableBuilder<T, D, R, P> previous,
+            final Iterable<? extends D> deltas) {
+        this.lineage = previous.lineage;
+        Link<T, D> link = previous.head;
+        for (final D delta : deltas) {
+            link = this.lineage.link(link, delta, false);
+        }
+        this.head = link;
 
     }
 
@@ -46,43 +217,698 @@ public abstract class AbstractImmutableBuilder<T, D, R, P> implements
             final BiFunction<T, D, T> mutator,
             final Function<T, R> rootConstructor,
             final Function<T, P> parentConstructor) {
+        this(initializer, mutator, ImmutableOptions.defaults(),
+                rootConstructor, parentConstructor);
+    }
 
-        this.merge = ol -> {
-            return fold(initializer.get(), ol, mutator);
-        };
-        this.parentConstructor = parentConstructor;
-        this.rootConstructor = rootConstructor;
-        this.head = Optional.empty();
+    protected AbstractImmutableBuilder(final Supplier<T> initializer,
+            final BiFunction<T, D, T> mutator,
+            final ImmutableOptions<T, D> options,
+            final Function<T, R> rootConstructor,
+            final Function<T, P> parentConstructor) {
+
+        this.lineage = new Lineage<>(initializer, mutator, options,
+                rootConstructor, parentConstructor);
+        this.head = null;
 
     }
 
     @Override
     public final R build() {
-        return this.rootConstructor.apply(this.merge.apply(this.head));
+        return this.lineage.options.memoizes() ? side().root(this::buildRoot)
+                : buildRoot();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Concurrent requests share one computation, run on the executor of the
+     * first request. The returned futures are independent, so cancelling one
+     * does not affect the others.
+     * </p>
+     */
+    @Override
+    public final CompletableFuture<R> buildAsync(final Executor executor) {
+        return side().rootAsync(this::build, executor);
     }
 
     @Override
     public final P done() {
-        return this.parentConstructor.apply(this.merge.apply(this.head));
+        return this.lineage.options.memoizes() ? side().parent(
+                this::buildParent) : buildParent();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Concurrent requests share one computation as for
+     * {@link #buildAsync(Executor)}.
+     * </p>
+     */
+    @Override
+    public final CompletableFuture<P> doneAsync(final Executor executor) {
+        return side().parentAsync(this::done, executor);
+    }
+
+    /**
+     * Compare this builder's history with another builder's from the same
+     * lineage. The nearest common ancestor is found in time logarithmic in
+     * the history length when the lineage keeps an
+     * {@link ImmutableOptions#withIndexedHistory() indexed history}, linear
+     * otherwise; the tails after it are returned.
+     *
+     * @param target
+     *            builder to compare with.
+     *
+     * @return deltas of both builders since their common ancestor.
+     *
+     * @throws IllegalArgumentException
+     *             if the builders descend from different root builders.
+     */
+    public final HistoryDiff<D> diff(
+            final AbstractImmutableBuilder<T, D, ?, ?> target) {
+        if (target.lineage != this.lineage) {
+            throw new IllegalArgumentException(
+                    "builders do not share a lineage");
+        }
+        final Link<T, D> common = Link.common(this.head, target.head);
+        return new HistoryDiff<>(Link.since(this.head, common), Link.since(
+                target.head, common));
+    }
+
+    /**
+     * <p>
+     * Structural identity of this builder's history. Keys of two builders are
+     * equal when their histories consist of equal deltas in the same order.
+     * When the lineage keeps an {@link ImmutableOptions#withIndexedHistory()
+     * indexed history} the hash code is maintained incrementally and
+     * available in constant time; otherwise it is computed from the history.
+     * </p>
+     * <p>
+     * The key does not identify how state is initialized, mutated or
+     * constructed. Only compare keys of builders that share those, e.g.
+     * builders of the same class created by the same root constructor.
+     * </p>
+     *
+     * @return history key.
+     */
+    public final Object lineageKey() {
+        return this.head == null ? Link.EMPTY : this.head;
+    }
+
+    /**
+     * <p>
+     * Build one variant of this template per tail of deltas. The result is
+     * equivalent to deriving a builder from this one for each tail and
+     * building it, but the template's history is folded once, on first use,
+     * and each variant copies that state and applies only its own tail.
+     * </p>
+     * <p>
+     * The returned stream is lazy and splits as the tails stream does, so it
+     * can be processed in parallel. Lineages without a state copier fold the
+     * template again for every variant.
+     * </p>
+     *
+     * @param tails
+     *            deltas of each variant, applied in iteration order after this
+     *            builder's history.
+     *
+     * @return root objects of the variants, in encounter order of the tails.
+     */
+    public final Stream<R> variants(
+            final Stream<? extends Iterable<? extends D>> tails) {
+        final Lineage<T, D, R, P> lineage = this.lineage;
+        final Supplier<T> template = templateState();
+        return tails.map(tail -> {
+            T state = template.get();
+            for (final D delta : tail) {
+                state = lineage.mutator.apply(state, delta);
+            }
+            return lineage.construct(lineage.rootConstructor, state);
+        });
+    }
+
+    /**
+     * Write this builder's history to a stream. The history can be restored on
+     * top of a root builder of the same lineage with
+     * {@link #AbstractImmutableBuilder(AbstractImmutableBuilder, Iterable)}.
+     * Checkpoints and cached results are not written.
+     *
+     * @param out
+     *            destination stream.
+     * @param codec
+     *            codec for this lineage's deltas.
+     *
+     * @throws IOException
+     *             if a delta cannot be encoded or the stream cannot be
+     *             written.
+     */
+    public final void writeHistory(final HistoryOutput out,
+            final DeltaCodec<? super D> codec) throws IOException {
+        out.writeHistory(history(), codec);
+    }
+
+    /**
+     * <p>
+     * Keep the folded state of this builder so builds of this builder and of
+     * builders derived from it replay only the deltas applied after this
+     * point. Checkpoints must be enabled in the lineage's
+     * {@link ImmutableOptions options}.
+     * </p>
+     * <p>
+     * A build that runs inside the constructor of another build, as a nested
+     * child builder's does when its constructors derive from this builder,
+     * keeps the state its own last delta was applied to without being asked
+     * once the child is built a second time. Each further build of the child
+     * then replays only the delta the child adds at this level. Invoke this to
+     * keep the state of builders that are built elsewhere, e.g.
+     * asynchronously, or to spare the first repeat its full replay.
+     * </p>
+     *
+     * @throws IllegalStateException
+     *             if the lineage has no state copier.
+     */
+    protected final void checkpoint() {
+        final ImmutableOptions<T, D> options = this.lineage.options;
+        if (!options.checkpoints()) {
+            throw new IllegalStateException("checkpoints are not enabled");
+        }
+        if (this.head != null && this.head.checkpoint == null) {
+            this.head.checkpoint = options.copy(this.lineage.fold(this.head));
+        }
+    }
+
+    /**
+     * Deltas applied since the root builder, oldest first, after coalescing.
+     *
+     * @return this builder's history.
+     */
+    protected final List<D> history() {
+        return Link.since(this.head, null);
+    }
+
+    /**
+     * Fold this builder's state, as a build does before handing it to a
+     * constructor. The state belongs to the caller.
+     *
+     * @return fresh state of this builder.
+     */
+    protected final T state() {
+        return this.lineage.fold(this.head);
+    }
+
+    private P buildParent() {
+        final BuildCache cache = this.lineage.options.cache();
+        return cache == null ? foldParent() : cache.get(position(),
+                this.lineage.parentConstructor, this::foldParent);
+    }
+
+    private R buildRoot() {
+        final BuildCache cache = this.lineage.options.cache();
+        return cache == null ? foldRoot() : cache.get(position(),
+                this.lineage.rootConstructor, this::foldRoot);
     }
 
-    private T fold(final T initial, final Optional<Link> mlink,
-            final BiFunction<T, D, T> mutator) {
+    private P foldParent() {
+        return this.lineage.construct(this.lineage.parentConstructor,
+                this.lineage.fold(this.head));
+    }
 
-        return mlink.map(l -> {
-            final T result = fold(initial, l.previous, mutator);
-            return mutator.apply(result, l.value);
-        }).orElse(initial);
+    private R foldRoot() {
+        return this.lineage.construct(this.lineage.rootConstructor,
+                this.lineage.fold(this.head));
+    }
+
+    /*
+     * identifies this builder's state within its lineage
+     */
+    private Object position() {
+        return this.head == null ? this.lineage : this.head;
+    }
 
+    /*
+     * memoized results and asynchronous builds, created on first use; racing
+     * callers agree on one instance
+     */
+    @SuppressWarnings("unchecked")
+    private Side<R, P> side() {
+        final Side<R, P> existing = this.side;
+        if (existing != null) {
+            return existing;
+        }
+        SIDE.compareAndSet(this, null, new Side<>());
+        return this.side;
     }
 
-    private class Link {
-        final Optional<Link> previous;
+    /*
+     * Supplier of fresh template state for variants. With a copier the
+     * template is checkpointed once and every call copies the checkpoint.
+     */
+    private Supplier<T> templateState() {
+        if (this.head == null) {
+            return this.lineage.initializer;
+        }
+        if (!this.lineage.options.checkpoints()) {
+            return () -> this.lineage.fold(this.head);
+        }
+        final Object guard = new Object();
+        return () -> {
+            if (this.head.checkpoint == null) {
+                synchronized (guard) {
+                    checkpoint();
+                }
+            }
+            return this.lineage.fold(this.head);
+        };
+    }
+
+    /*
+     * One link per delta, pointing back toward the root. The first link of a
+     * lineage has no previous link. Lineages with indexed histories use
+     * IndexedLink throughout.
+     */
+    private static class Link<T, D> {
+
+        /*
+         * key of an empty history
+         */
+        static final Object EMPTY = new Object();
+
+        /*
+         * folded state at this link, captured lazily. Never mutated once
+         * published.
+         */
+        volatile T checkpoint;
+        final int depth;
+
+        /*
+         * whether a nested build has folded a child of this link
+         */
+        volatile boolean nested;
+
+        final Link<T, D> previous;
         final D value;
 
-        Link(final D value, final Optional<Link> prev) {
+        Link(final D value, final Link<T, D> prev) {
             this.value = value;
             this.previous = prev;
+            this.depth = prev == null ? 1 : prev.depth + 1;
+        }
+
+        static int depth(final Link<?, ?> l) {
+            return l == null ? 0 : l.depth;
+        }
+
+        /*
+         * Nearest link shared by two histories, or null if they only share the
+         * start of the lineage. Jump targets depend only on depth, so links at
+         * equal depth jump in step.
+         */
+        static <T, D> Link<T, D> common(final Link<T, D> a,
+                final Link<T, D> b) {
+            Link<T, D> x = up(a, depth(b));
+            Link<T, D> y = up(b, depth(a));
+            while (x != y) {
+                if (x.jump() != y.jump()) {
+                    x = x.jump();
+                    y = y.jump();
+                } else {
+                    x = x.previous;
+                    y = y.previous;
+                }
+            }
+            return x;
+        }
+
+        /*
+         * deltas after an ancestor, oldest first
+         */
+        static <T, D> List<D> since(final Link<T, D> l,
+                final Link<T, D> ancestor) {
+            final ArrayDeque<D> rval = new ArrayDeque<>();
+            for (Link<T, D> c = l; c != ancestor; c = c.previous) {
+                rval.push(c.value);
+            }
+            return new ArrayList<>(rval);
+        }
+
+        /*
+         * ancestor of a link at no more than the given depth
+         */
+        static <T, D> Link<T, D> up(final Link<T, D> l, final int depth) {
+            Link<T, D> cursor = l;
+            while (depth(cursor) > depth) {
+                cursor = depth(cursor.jump()) >= depth ? cursor.jump()
+                        : cursor.previous;
+            }
+            return cursor;
+        }
+
+        /*
+         * Structural equality, walking back until the histories meet. When
+         * links are interned that happens after at most one step.
+         */
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Link)) {
+                return false;
+            }
+            Link<?, ?> a = this;
+            Link<?, ?> b = (Link<?, ?>) obj;
+            while (a != b) {
+                if (a == null || b == null || a.depth != b.depth
+                        || !Objects.equals(a.value, b.value)) {
+                    return false;
+                }
+                a = a.previous;
+                b = b.previous;
+            }
+            return true;
+        }
+
+        /*
+         * rolling hash of the history ending here, computed by walking back
+         */
+        int hash() {
+            int rval = 0;
+            int power = 1;
+            for (Link<T, D> c = this; c != null; c = c.previous) {
+                rval += power * Objects.hashCode(c.value);
+                power *= 31;
+            }
+            return rval;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash();
+        }
+
+        /*
+         * farthest ancestor reachable in one step
+         */
+        Link<T, D> jump() {
+            return this.previous;
+        }
+
+    }
+
+    /*
+     * Link that also keeps the rolling hash and a skew-binary jump pointer,
+     * so hashing takes constant and finding ancestors logarithmic time.
+     */
+    private static final class IndexedLink<T, D> extends Link<T, D> {
+
+        /*
+         * rolling hash of the history ending here
+         */
+        final int hash;
+        /*
+         * skew-binary jump pointer toward the root, or null for the start of
+         * the lineage. Reaches any ancestor in O(log depth) steps.
+         */
+        final Link<T, D> jump;
+
+        IndexedLink(final D value, final IndexedLink<T, D> prev) {
+            super(value, prev);
+            this.hash = 31 * (prev == null ? 0 : prev.hash)
+                    + Objects.hashCode(value);
+            if (prev != null && prev.jump != null
+                    && prev.depth - prev.jump.depth == prev.jump.depth
+                            - depth(prev.jump.jump())) {
+                this.jump = prev.jump.jump();
+            } else {
+                this.jump = prev;
+            }
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof IndexedLink
+                    && ((IndexedLink<?, ?>) obj).hash != this.hash) {
+                return false;
+            }
+            return super.equals(obj);
+        }
+
+        @Override
+        int hash() {
+            return this.hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        Link<T, D> jump() {
+            return this.jump;
+        }
+
+    }
+
+    /*
+     * Everything a lineage shares: how to create, mutate and copy state and
+     * how to construct results. Every builder in a lineage references the
+     * same instance.
+     */
+    private static final class Lineage<T, D, R, P> {
+
+        final Supplier<T> initializer;
+
+        /*
+         * partition of the interner for this lineage's state handling, or
+         * null if histories are not interned
+         */
+        final LineageInterner.Table interned;
+
+        final BiFunction<T, D, T> mutator;
+
+        final ImmutableOptions<T, D> options;
+
+        final Function<T, P> parentConstructor;
+
+        final Function<T, R> rootConstructor;
+
+        Lineage(final Supplier<T> initializer,
+                final BiFunction<T, D, T> mutator,
+                final ImmutableOptions<T, D> options,
+                final Function<T, R> rootConstructor,
+                final Function<T, P> parentConstructor) {
+            this.initializer = initializer;
+            this.mutator = mutator;
+            this.options = options;
+            this.rootConstructor = rootConstructor;
+            this.parentConstructor = parentConstructor;
+            final LineageInterner interner = options.interner();
+            this.interned = interner == null ? null : interner.table(
+                    initializer, mutator, options.copier());
+        }
+
+        /*
+         * apply a link's delta and capture an interval checkpoint if one is
+         * due
+         */
+        T apply(final T state, final Link<T, D> l) {
+            final T result = this.mutator.apply(state, l.value);
+            if (l.checkpoint == null && this.options.checkpointAt(l.depth)) {
+                l.checkpoint = this.options.copy(result);
+            }
+            return result;
+        }
+
+        /*
+         * run a constructor, marking folds it causes as nested
+         */
+        <X> X construct(final Function<T, X> constructor, final T state) {
+            final int[] nesting = NESTING.get();
+            ++nesting[0];
+            try {
+                return constructor.apply(state);
+            } finally {
+                --nesting[0];
+            }
+        }
+
+        /*
+         * Fold the state at a link. A nested build usually derives from its
+         * parent's builder by one delta and is often repeated for every child,
+         * so when checkpoints are enabled the state before that delta is kept
+         * once a second nested build derives from it. A nested build that is
+         * never repeated keeps nothing.
+         */
+        T fold(final Link<T, D> head) {
+            if (head != null && head.previous != null
+                    && head.previous.checkpoint == null
+                    && this.options.checkpoints() && NESTING.get()[0] > 0) {
+                final Link<T, D> base = head.previous;
+                if (base.nested) {
+                    base.checkpoint = this.options.copy(replay(base));
+                } else {
+                    base.nested = true;
+                }
+            }
+            return replay(head);
+        }
+
+        /*
+         * link a delta after the given link, coalescing if requested and
+         * interning as configured
+         */
+        Link<T, D> link(final Link<T, D> previous, final D delta,
+                final boolean coalesce) {
+            final Optional<D> coalesced = previous == null || !coalesce
+                    || previous.checkpoint != null ? Optional.<D> empty()
+                    : this.options.coalesce(previous.value, delta);
+            final Link<T, D> link = coalesced.isPresent() ? newLink(
+                    coalesced.get(), previous.previous) : newLink(delta,
+                    previous);
+            return this.interned == null ? link : this.interned.intern(link);
+        }
+
+        /*
+         * Walk back to the nearest checkpoint (or the start of the lineage),
+         * then replay forward. Stack depth does not depend on history length.
+         */
+        T replay(final Link<T, D> head) {
+
+            final ArrayDeque<Link<T, D>> tail = new ArrayDeque<>();
+            Link<T, D> cursor = head;
+            while (cursor != null && cursor.checkpoint == null) {
+                tail.push(cursor);
+                cursor = cursor.previous;
+            }
+
+            T result = cursor == null ? this.initializer.get() : this.options
+                    .copy(cursor.checkpoint);
+
+            final Composition<D> composition = this.options.composition();
+            if (composition != null && tail.size() > Composition.LEAF_SIZE) {
+                final ArrayList<D> deltas = new ArrayList<>(tail.size());
+                tail.forEach(l -> deltas.add(l.value));
+                for (final D delta : composition.reduce(deltas)) {
+                    result = this.mutator.apply(result, delta);
+                }
+                final Link<T, D> last = tail.getLast();
+                if (this.options.checkpointAt(last.depth)) {
+                    last.checkpoint = this.options.copy(result);
+                }
+                return result;
+            }
+
+            for (final Link<T, D> l : tail) {
+                result = apply(result, l);
+            }
+
+            return result;
+
+        }
+
+        private Link<T, D> newLink(final D value, final Link<T, D> previous) {
+            return this.options.indexes() ? new IndexedLink<>(value,
+                    (IndexedLink<T, D>) previous) : new Link<>(value, previous);
+        }
+
+    }
+
+    /*
+     * Optional data of one builder: memoized results, each computed at most
+     * once with concurrent callers waiting for the first computation, and
+     * asynchronous builds that have not completed yet.
+     */
+    private static final class Side<R, P> {
+
+        private static final Object NONE = new Object();
+
+        /*
+         * guards the asynchronous builds, so starting one never waits for a
+         * memoized result to be computed
+         */
+        private final Object async = new Object();
+
+        private volatile Object parent = NONE;
+
+        private CompletableFuture<P> parentAsync;
+
+        private volatile Object root = NONE;
+
+        private CompletableFuture<R> rootAsync;
+
+        @SuppressWarnings("unchecked")
+        P parent(final Supplier<P> compute) {
+            Object rval = this.parent;
+            if (rval == NONE) {
+                synchronized (this) {
+                    rval = this.parent;
+                    if (rval == NONE) {
+                        rval = compute.get();
+                        this.parent = rval;
+                    }
+                }
+            }
+            return (P) rval;
+        }
+
+        CompletableFuture<P> parentAsync(
+                final Supplier<P> compute, final Executor executor) {
+            CompletableFuture<P> rval;
+            synchronized (this.async) {
+                rval = this.parentAsync;
+                if (rval == null) {
+                    rval = CompletableFuture.supplyAsync(compute, executor);
+                    this.parentAsync = rval;
+                    final CompletableFuture<P> started = rval;
+                    rval.whenComplete((r, t) -> clearParent(started));
+                }
+            }
+            return rval.thenApply(Function.identity());
+        }
+
+        @SuppressWarnings("unchecked")
+        R root(final Supplier<R> compute) {
+            Object rval = this.root;
+            if (rval == NONE) {
+                synchronized (this) {
+                    rval = this.root;
+                    if (rval == NONE) {
+                        rval = compute.get();
+                        this.root = rval;
+                    }
+                }
+            }
+            return (R) rval;
+        }
+
+        CompletableFuture<R> rootAsync(final Supplier<R> compute,
+                final Executor executor) {
+            CompletableFuture<R> rval;
+            synchronized (this.async) {
+                rval = this.rootAsync;
+                if (rval == null) {
+                    rval = CompletableFuture.supplyAsync(compute, executor);
+                    this.rootAsync = rval;
+                    final CompletableFuture<R> started = rval;
+                    rval.whenComplete((r, t) -> clearRoot(started));
+                }
+            }
+            return rval.thenApply(Function.identity());
+        }
+
+        private void clearParent(final CompletableFuture<P> done) {
+            synchronized (this.async) {
+                if (this.parentAsync == done) {
+                    this.parentAsync = null;
+                }
+            }
+        }
+
+        private void clearRoot(final CompletableFuture<R> done) {
+            synchronized (this.async) {
+                if (this.rootAsync == done) {
+                    this.rootAsync = null;
+                }
+            }
         }
 
     }
@@ -17,38 +17,403 @@
  */
 package com.banjocreek.riverbed.builder;
 
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import com.banjocreek.riverbed.builder.MutableOptions.Mode;
 
 public abstract class AbstractMutableBuilder<T, D, P> implements
         MutableBuilder<P> {
 
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<AbstractMutableBuilder, Object> STATE = AtomicReferenceFieldUpdater
+            .newUpdater(AbstractMutableBuilder.class, Object.class, "state");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<AbstractMutableBuilder> VERSION = AtomicLongFieldUpdater
+            .newUpdater(AbstractMutableBuilder.class, "version");
+
+    private final boolean cacheMerge;
+
     private final Function<T, P> constructor;
 
+    /*
+     * copies state for snapshot merges, or null
+     */
+    private final UnaryOperator<T> copier;
+
+    /*
+     * Guards state in place. Owned by this builder so that independent
+     * builders never contend, whatever mutator they share. Null when the
+     * stamped lock is used instead or the builder does not lock.
+     */
+    private final ReentrantLock lock;
+
+    /*
+     * last merge result, or null if merges are not cached or none happened
+     */
+    private volatile Merged<P> merged;
+
+    private final Mode mode;
+
     private final BiFunction<T, D, T> mutator;
 
-    private T state = null;
+    /*
+     * whether snapshots may copy without locking
+     */
+    private final boolean optimistic;
+
+    /*
+     * deltas not applied yet, or null unless combining
+     */
+    private final ConcurrentLinkedQueue<D> pending;
+
+    /*
+     * guards state for stamped locking and snapshot merges, or null
+     */
+    private final StampedLock stamped;
+
+    private volatile T state = null;
+
+    private volatile long version;
+
+    /*
+     * told after each change
+     */
+    private final CopyOnWriteArrayList<Runnable> watchers = new CopyOnWriteArrayList<>();
 
     protected AbstractMutableBuilder(final Supplier<T> initializer,
             final BiFunction<T, D, T> mutator, final Function<T, P> constructor) {
+        this(initializer, mutator, MutableOptions.defaults(), constructor);
+    }
+
+    protected AbstractMutableBuilder(final Supplier<T> initializer,
+            final BiFunction<T, D, T> mutator,
+            final MutableOptions<T, D> options, final Function<T, P> constructor) {
         super();
         this.mutator = mutator;
+        this.mode = options.mode();
+        this.cacheMerge = options.cachesMerge();
+        this.pending = this.mode == Mode.COMBINING ? new ConcurrentLinkedQueue<>()
+                : null;
+        final boolean locked = options.locking() != Locking.NONE
+                && this.mode != Mode.FUNCTIONAL && this.mode != Mode.CONCURRENT;
+        final boolean snapshots = locked && options.snapshots();
+        if (snapshots && options.copier() == null) {
+            throw new IllegalArgumentException(
+                    "snapshot merges need a state copier");
+        }
+        this.copier = snapshots ? options.copier() : null;
+        this.optimistic = snapshots && options.optimistic();
+        this.stamped = snapshots || locked
+                && options.locking() == Locking.STAMPED ? new StampedLock()
+                : null;
+        this.lock = locked && this.stamped == null ? new ReentrantLock() : null;
         this.constructor = constructor;
         this.state = initializer.get();
     }
 
     @Override
     public final P merge() {
-        synchronized (this.mutator) {
-            return this.constructor.apply(this.state);
+        if (!this.cacheMerge) {
+            return construct();
         }
+        final long current = this.version;
+        final Merged<P> cached = this.merged;
+        if (cached != null && cached.version == current) {
+            return cached.result;
+        }
+        final P rval = construct();
+        this.merged = new Merged<>(current, rval);
+        return rval;
+    }
+
+    /**
+     * Number of deltas applied to this builder so far.
+     *
+     * @return modification count.
+     */
+    public final long version() {
+        return this.version;
+    }
+
+    /**
+     * Call {@code watcher} after each change, once the change is visible to
+     * merges. Watchers run on the thread that applied the change and must not
+     * block.
+     *
+     * @param watcher
+     *            change callback.
+     */
+    final void watch(final Runnable watcher) {
+        this.watchers.add(watcher);
+    }
+
+    /**
+     * Stop telling a watcher about changes.
+     *
+     * @param watcher
+     *            watcher to remove.
+     */
+    final void unwatch(final Runnable watcher) {
+        this.watchers.remove(watcher);
     }
 
     protected final void apply(final D delta) {
-        synchronized (this.mutator) {
-            this.state = this.mutator.apply(this.state, delta);
+        switch (this.mode) {
+        case FUNCTIONAL:
+            T current;
+            T next;
+            do {
+                current = this.state;
+                next = this.mutator.apply(current, delta);
+            } while (!STATE.compareAndSet(this, current, next));
+            VERSION.incrementAndGet(this);
+            changed();
+            break;
+        case CONCURRENT:
+            this.mutator.apply(this.state, delta);
+            VERSION.incrementAndGet(this);
+            changed();
+            break;
+        case COMBINING:
+            this.pending.add(delta);
+            VERSION.incrementAndGet(this);
+            combine();
+            changed();
+            break;
+        default:
+            final long stamp = acquire();
+            try {
+                this.state = this.mutator.apply(this.state, delta);
+                VERSION.incrementAndGet(this);
+            } finally {
+                release(stamp);
+            }
+            changed();
+        }
+    }
+
+    /**
+     * Apply deltas in order as one step. Locking builders take their lock
+     * once for the whole batch, and a merge sees either none or all of the
+     * deltas unless the builder's state is concurrent.
+     *
+     * @param deltas
+     *            deltas to apply.
+     */
+    protected final void applyAll(final Iterable<? extends D> deltas) {
+        final ArrayList<D> batch = new ArrayList<>();
+        deltas.forEach(batch::add);
+        if (batch.isEmpty()) {
+            return;
+        }
+        switch (this.mode) {
+        case FUNCTIONAL:
+            T current;
+            T next;
+            do {
+                current = this.state;
+                next = current;
+                for (final D delta : batch) {
+                    next = this.mutator.apply(next, delta);
+                }
+            } while (!STATE.compareAndSet(this, current, next));
+            VERSION.addAndGet(this, batch.size());
+            break;
+        case CONCURRENT:
+            for (final D delta : batch) {
+                this.mutator.apply(this.state, delta);
+            }
+            VERSION.addAndGet(this, batch.size());
+            break;
+        default:
+            final long stamp = acquire();
+            try {
+                /*
+                 * deltas this thread queued earlier go first
+                 */
+                drain();
+                T folded = this.state;
+                for (final D delta : batch) {
+                    folded = this.mutator.apply(folded, delta);
+                }
+                this.state = folded;
+                VERSION.addAndGet(this, batch.size());
+            } finally {
+                release(stamp);
+            }
+            if (this.pending != null) {
+                combine();
+            }
+        }
+        changed();
+    }
+
+    /*
+     * take the exclusive lock, returning the stamp to release it with
+     */
+    private long acquire() {
+        if (this.stamped != null) {
+            return this.stamped.writeLock();
+        }
+        if (this.lock != null) {
+            this.lock.lock();
+        }
+        return 1L;
+    }
+
+    /*
+     * Tell watchers about a change. Called after the change is visible to
+     * merges and outside the lock.
+     */
+    private void changed() {
+        if (!this.watchers.isEmpty()) {
+            this.watchers.forEach(Runnable::run);
+        }
+    }
+
+    /*
+     * Apply queued deltas unless another thread holds the lock. Re-check
+     * after releasing: a delta queued while this thread held the lock would
+     * otherwise wait for the next merge.
+     */
+    private void combine() {
+        while (!this.pending.isEmpty()) {
+            final long stamp = tryAcquire();
+            if (stamp == 0L) {
+                break;
+            }
+            try {
+                drain();
+            } finally {
+                release(stamp);
+            }
+        }
+    }
+
+    private P construct() {
+        if (this.mode == Mode.FUNCTIONAL || this.mode == Mode.CONCURRENT) {
+            return this.constructor.apply(this.state);
+        }
+        if (this.copier != null) {
+            return this.constructor.apply(snapshot());
         }
+        if (this.stamped != null && this.pending == null) {
+            final long stamp = this.stamped.readLock();
+            try {
+                return this.constructor.apply(this.state);
+            } finally {
+                this.stamped.unlockRead(stamp);
+            }
+        }
+        final long stamp = acquire();
+        try {
+            drain();
+            return this.constructor.apply(this.state);
+        } finally {
+            release(stamp);
+        }
+    }
+
+    /*
+     * apply queued deltas; caller holds the lock
+     */
+    private void drain() {
+        if (this.pending == null) {
+            return;
+        }
+        T current = this.state;
+        for (D delta = this.pending.poll(); delta != null; delta = this.pending
+                .poll()) {
+            current = this.mutator.apply(current, delta);
+        }
+        this.state = current;
+    }
+
+    private void release(final long stamp) {
+        if (this.stamped != null) {
+            this.stamped.unlockWrite(stamp);
+        } else if (this.lock != null) {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * Copy of the current state. An optimistic copier is tried without
+     * locking first; a copy that overlapped a mutation is discarded, even if
+     * the copier threw a runtime exception. Errors always propagate.
+     */
+    private T snapshot() {
+        if (this.optimistic
+                && (this.pending == null || this.pending.isEmpty())) {
+            final long stamp = this.stamped.tryOptimisticRead();
+            if (stamp != 0L) {
+                try {
+                    final T copy = this.copier.apply(this.state);
+                    if (this.stamped.validate(stamp)) {
+                        return copy;
+                    }
+                } catch (final RuntimeException e) {
+                    if (this.stamped.validate(stamp)) {
+                        throw e;
+                    }
+                }
+            }
+        }
+        if (this.pending == null) {
+            final long stamp = this.stamped.readLock();
+            try {
+                return this.copier.apply(this.state);
+            } finally {
+                this.stamped.unlockRead(stamp);
+            }
+        }
+        final long stamp = this.stamped.writeLock();
+        try {
+            drain();
+            return this.copier.apply(this.state);
+        } finally {
+            this.stamped.unlockWrite(stamp);
+        }
+    }
+
+    /*
+     * try to take the exclusive lock, returning zero if it is held
+     */
+    private long tryAcquire() {
+        if (this.stamped != null) {
+            return this.stamped.tryWriteLock();
+        }
+        if (this.lock != null) {
+            return this.lock.tryLock() ? 1L : 0L;
+        }
+        return 1L;
+    }
+
+    /*
+     * merge result and the version it was computed at
+     */
+    private static final class Merged<P> {
+
+        final P result;
+
+        final long version;
+
+        Merged(final long version, final P result) {
+            this.version = version;
+            this.result = result;
+        }
+
     }
 
 }
@@ -0,0 +1,340 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * <p>
+ * Bounded cache of immutable builder results. A cache is meant to be shared
+ * process wide by every lineage that enables it through
+ * {@link ImmutableOptions#withCache(BuildCache)}. Results are keyed by the
+ * builder's position in its lineage and by the constructor that produces
+ * them, so {@link ImmutableBuilder#build()} and
+ * {@link ImmutableBuilder#done()} are cached separately. Lineages that
+ * {@link LineageInterner intern} their histories share positions, and share
+ * results when their constructors are equal.
+ * </p>
+ * <p>
+ * The cache is split into segments, each with its own lock and its own
+ * share of the bound, so lookups from different threads rarely contend. When
+ * a segment's results exceed its share, its least recently used results are
+ * evicted, so eviction order is only approximately least recently used
+ * across the whole cache. Results are computed outside the segment lock, so
+ * concurrent misses for the same builder may compute it more than once.
+ * </p>
+ * <p>
+ * A cached result's key holds its builder's position, and a position holds
+ * the whole history before it. A cached result therefore keeps that history
+ * reachable until it is evicted or the cache is invalidated, even if every
+ * builder in the lineage is otherwise unreachable. Bound the cache with that
+ * in mind.
+ * </p>
+ */
+public final class BuildCache {
+
+    /*
+     * upper bound on the segment count; smaller caches get fewer segments so
+     * each keeps a useful share of the bound
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /*
+     * smallest share of the bound worth a segment of its own
+     */
+    private static final long MIN_SEGMENT_WEIGHT = 20;
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder loadTime = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final Segment[] segments;
+
+    private final ToLongFunction<Object> weigher;
+
+    /**
+     * Create a cache holding at most the specified number of results.
+     *
+     * @param maximumSize
+     *            largest number of results to hold.
+     */
+    public BuildCache(final long maximumSize) {
+        this(maximumSize, result -> 1);
+    }
+
+    /**
+     * Create a cache bounded by the total weight of its results.
+     *
+     * @param maximumWeight
+     *            largest total weight to hold.
+     * @param weigher
+     *            computes the weight of a result. Must be non-negative and
+     *            must not change while the result is cached.
+     */
+    public BuildCache(final long maximumWeight,
+            final ToLongFunction<Object> weigher) {
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("negative maximum weight");
+        }
+        int count = 1;
+        while (count < MAX_SEGMENTS
+                && count * 2 * MIN_SEGMENT_WEIGHT <= maximumWeight) {
+            count *= 2;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; ++i) {
+            this.segments[i] = new Segment(maximumWeight / count
+                    + (i < maximumWeight % count ? 1 : 0));
+        }
+        this.weigher = weigher;
+    }
+
+    /**
+     * Discard all cached results. Statistics are retained.
+     */
+    public void invalidateAll() {
+        for (final Segment segment : this.segments) {
+            synchronized (segment) {
+                segment.entries.clear();
+                segment.weight = 0;
+            }
+        }
+    }
+
+    /**
+     * Number of cached results.
+     *
+     * @return number of results.
+     */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Snapshot of the cache statistics.
+     *
+     * @return statistics.
+     */
+    public Stats stats() {
+        return new Stats(this.hits.sum(), this.misses.sum(),
+                this.evictions.sum(), this.loadTime.sum());
+    }
+
+    /*
+     * Look up a result, computing and caching it on a miss.
+     */
+    @SuppressWarnings("unchecked")
+    <X> X get(final Object position, final Object constructor,
+            final Supplier<X> loader) {
+
+        final Key key = new Key(position, constructor);
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final Entry e = segment.entries.get(key);
+            if (e != null) {
+                this.hits.increment();
+                return (X) e.value;
+            }
+        }
+        this.misses.increment();
+
+        final long start = System.nanoTime();
+        final X value = loader.get();
+        this.loadTime.add(System.nanoTime() - start);
+
+        final long w = this.weigher.applyAsLong(value);
+        synchronized (segment) {
+            final Entry previous = segment.entries.put(key, new Entry(value,
+                    w));
+            segment.weight += w - (previous == null ? 0 : previous.weight);
+            final Iterator<Map.Entry<Key, Entry>> lru = segment.entries
+                    .entrySet().iterator();
+            while (segment.weight > segment.maximumWeight && lru.hasNext()) {
+                segment.weight -= lru.next().getValue().weight;
+                lru.remove();
+                this.evictions.increment();
+            }
+        }
+        return value;
+
+    }
+
+    /*
+     * segment owning a key, chosen by the spread bits of its hash
+     */
+    private Segment segmentFor(final Key key) {
+        final int h = key.hashCode();
+        return this.segments[(h ^ h >>> 16) & this.segments.length - 1];
+    }
+
+    /**
+     * Cache statistics.
+     */
+    public static final class Stats {
+
+        private final long evictionCount;
+
+        private final long hitCount;
+
+        private final long missCount;
+
+        private final long totalLoadTime;
+
+        Stats(final long hitCount, final long missCount,
+                final long evictionCount, final long totalLoadTime) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.totalLoadTime = totalLoadTime;
+        }
+
+        /**
+         * Number of results evicted to respect the bound.
+         *
+         * @return eviction count.
+         */
+        public long evictionCount() {
+            return this.evictionCount;
+        }
+
+        /**
+         * Number of lookups answered from the cache.
+         *
+         * @return hit count.
+         */
+        public long hitCount() {
+            return this.hitCount;
+        }
+
+        /**
+         * Fraction of lookups answered from the cache, or 1 if there have
+         * been no lookups.
+         *
+         * @return hit rate.
+         */
+        public double hitRate() {
+            final long requests = this.hitCount + this.missCount;
+            return requests == 0 ? 1.0 : (double) this.hitCount / requests;
+        }
+
+        /**
+         * Number of lookups that had to compute a result.
+         *
+         * @return miss count.
+         */
+        public long missCount() {
+            return this.missCount;
+        }
+
+        @Override
+        public String toString() {
+            return "BuildCache.Stats[hits=" + this.hitCount + ", misses="
+                    + this.missCount + ", evictions=" + this.evictionCount
+                    + ", loadTime=" + this.totalLoadTime + "ns]";
+        }
+
+        /**
+         * Total time spent computing results on misses.
+         *
+         * @return load time in nanoseconds.
+         */
+        public long totalLoadTime() {
+            return this.totalLoadTime;
+        }
+
+    }
+
+    private static final class Entry {
+
+        final Object value;
+
+        final long weight;
+
+        Entry(final Object value, final long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+
+    }
+
+    /*
+     * independently locked share of the cache, in access order
+     */
+    private static final class Segment {
+
+        final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16,
+                0.75f, true);
+
+        final long maximumWeight;
+
+        long weight = 0;
+
+        Segment(final long maximumWeight) {
+            this.maximumWeight = maximumWeight;
+        }
+
+    }
+
+    /*
+     * identity of builder position, and constructor compared with equals
+     */
+    private static final class Key {
+
+        private final Object constructor;
+
+        private final Object position;
+
+        Key(final Object position, final Object constructor) {
+            this.position = position;
+            this.constructor = constructor;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return this.position == other.position
+                    && this.constructor.equals(other.constructor);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(this.position)
+                    + this.constructor.hashCode();
+        }
+
+    }
+
+}
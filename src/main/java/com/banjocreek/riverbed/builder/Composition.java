@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * Reduces a sequence of deltas by accumulating runs of adjacent deltas that
+ * compose. Disjoint ranges are reduced concurrently on a fork/join pool and
+ * joined as a balanced tree; a join merges at most the two runs that meet at
+ * the boundary. Deltas that do not compose are kept in order, so applying
+ * the result is equivalent to applying the original sequence.
+ */
+final class Composition<D> {
+
+    /**
+     * Ranges at most this long are reduced sequentially.
+     */
+    static final int LEAF_SIZE = 2048;
+
+    private final Function<? super D, ? extends DeltaAccumulator<D>> accumulator;
+
+    private final ForkJoinPool pool;
+
+    Composition(final ForkJoinPool pool,
+            final Function<? super D, ? extends DeltaAccumulator<D>> accumulator) {
+        this.pool = pool;
+        this.accumulator = accumulator;
+    }
+
+    /**
+     * Reduce a sequence of deltas.
+     *
+     * @param deltas
+     *            deltas in application order.
+     *
+     * @return equivalent, usually much shorter, sequence.
+     */
+    List<D> reduce(final List<D> deltas) {
+        final List<DeltaAccumulator<D>> runs = deltas.size() <= LEAF_SIZE ? reduce(
+                deltas, 0, deltas.size())
+                : this.pool.invoke(new Reduce(deltas, 0, deltas.size()));
+        final ArrayList<D> rval = new ArrayList<>(runs.size());
+        runs.forEach(run -> rval.add(run.result()));
+        return rval;
+    }
+
+    private ArrayList<DeltaAccumulator<D>> reduce(final List<D> deltas,
+            final int from, final int to) {
+        final ArrayList<DeltaAccumulator<D>> runs = new ArrayList<>();
+        DeltaAccumulator<D> run = null;
+        for (int i = from; i < to; ++i) {
+            final D delta = deltas.get(i);
+            if (run == null || !run.add(delta)) {
+                run = this.accumulator.apply(delta);
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    private final class Reduce extends
+            RecursiveTask<ArrayList<DeltaAccumulator<D>>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<D> deltas;
+
+        private final int from;
+
+        private final int to;
+
+        Reduce(final List<D> deltas, final int from, final int to) {
+            this.deltas = deltas;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ArrayList<DeltaAccumulator<D>> compute() {
+            if (this.to - this.from <= LEAF_SIZE) {
+                return reduce(this.deltas, this.from, this.to);
+            }
+            final int mid = this.from + this.to >>> 1;
+            final Reduce right = new Reduce(this.deltas, mid, this.to);
+            right.fork();
+            final ArrayList<DeltaAccumulator<D>> rval = new Reduce(
+                    this.deltas, this.from, mid).compute();
+            final ArrayList<DeltaAccumulator<D>> tail = right.join();
+            if (!tail.isEmpty()) {
+                final boolean joined = !rval.isEmpty()
+                        && rval.get(rval.size() - 1).addAll(tail.get(0));
+                rval.addAll(joined ? tail.subList(1, tail.size()) : tail);
+            }
+            return rval;
+        }
+
+    }
+
+}
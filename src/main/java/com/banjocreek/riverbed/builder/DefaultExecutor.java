@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Executor for asynchronous builds when the client does not supply one. Each
+ * build runs on its own virtual thread where the runtime provides them,
+ * otherwise on the common pool.
+ */
+final class DefaultExecutor {
+
+    static final Executor INSTANCE = create();
+
+    private static Executor create() {
+        try {
+            return (Executor) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            return ForkJoinPool.commonPool();
+        }
+    }
+
+    private DefaultExecutor() {
+    }
+
+}
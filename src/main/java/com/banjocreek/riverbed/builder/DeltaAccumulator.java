@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+/**
+ * <p>
+ * Composes a run of adjacent deltas in place for
+ * {@link ImmutableOptions#withParallelFold(java.util.concurrent.ForkJoinPool, java.util.function.Function)
+ * parallel folds}. An accumulator starts from one delta and grows as later
+ * deltas are added, so composing a run costs time proportional to the size
+ * of the deltas rather than copying the composed delta at every step.
+ * </p>
+ * <p>
+ * Accumulators are confined to the task that created them and are never
+ * used concurrently.
+ * </p>
+ *
+ * @param <D>
+ *            type of the deltas.
+ */
+public interface DeltaAccumulator<D> {
+
+    /**
+     * Absorb a delta applied after everything accumulated so far. A delta
+     * that is not absorbed leaves this accumulator unchanged.
+     *
+     * @param delta
+     *            later delta. Must not be modified.
+     *
+     * @return true if the delta was absorbed, false if it must be applied
+     *         separately.
+     */
+    boolean add(D delta);
+
+    /**
+     * Absorb everything another accumulator of the same lineage has
+     * accumulated, applied after this one. The argument is discarded when
+     * this returns true, so its storage may be adopted rather than copied.
+     *
+     * @param later
+     *            accumulator of the deltas that follow this one.
+     *
+     * @return true if the argument was absorbed, false if both are left
+     *         unchanged.
+     */
+    boolean addAll(DeltaAccumulator<D> later);
+
+    /**
+     * Single delta equivalent to everything accumulated. The accumulator is
+     * discarded afterwards.
+     *
+     * @return composed delta.
+     */
+    D result();
+
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Feeds deltas from a publisher into a mutable builder. Deltas are requested
+ * a batch at a time and each complete batch is applied in one step, under a
+ * single acquisition of the builder's lock, before the next batch is
+ * requested. At most one batch is buffered, however fast the publisher is.
+ * </p>
+ * <p>
+ * A builder with {@link MutableOptions#withConcurrentState() concurrent
+ * state} or without locking, such as a striped map builder, applies a batch
+ * one delta at a time, so a concurrent merge may see part of a batch.
+ * </p>
+ * <p>
+ * A partial batch is applied when the stream ends, when it is
+ * {@link #flush() flushed} or when the subscription is {@link #cancel()
+ * cancelled}. Optionally the builder is merged after a number of batches and
+ * when the stream completes.
+ * </p>
+ *
+ * @param <D>
+ *            delta type.
+ */
+public final class DeltaSubscriber<D> implements Flow.Subscriber<D> {
+
+    /**
+     * Feed a builder without merging it.
+     *
+     * @param builder
+     *            builder to feed.
+     * @param batchSize
+     *            number of deltas requested and applied at a time.
+     *
+     * @return new subscriber.
+     */
+    public static <D> DeltaSubscriber<D> of(
+            final AbstractMutableBuilder<?, D, ?> builder, final int batchSize) {
+        return new DeltaSubscriber<>(builder, batchSize, 0, null);
+    }
+
+    /**
+     * Feed a builder and merge it after every {@code mergeEvery} batches and
+     * when the stream completes.
+     *
+     * @param builder
+     *            builder to feed.
+     * @param batchSize
+     *            number of deltas requested and applied at a time.
+     * @param mergeEvery
+     *            number of batches between merges.
+     * @param sink
+     *            receives merged results.
+     *
+     * @return new subscriber.
+     */
+    public static <D, P> DeltaSubscriber<D> of(
+            final AbstractMutableBuilder<?, D, P> builder, final int batchSize,
+            final int mergeEvery, final Consumer<? super P> sink) {
+        if (mergeEvery < 1) {
+            throw new IllegalArgumentException("need at least one batch");
+        }
+        Objects.requireNonNull(sink);
+        return new DeltaSubscriber<>(builder, batchSize, mergeEvery,
+                () -> sink.accept(builder.merge()));
+    }
+
+    private int batches;
+
+    private final int batchSize;
+
+    private ArrayList<D> buffer;
+
+    private final AbstractMutableBuilder<?, D, ?> builder;
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    /*
+     * guards everything that changes, since flush and cancel may be called
+     * from any thread
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /*
+     * merges and hands over the result, or null
+     */
+    private final Runnable merge;
+
+    private final int mergeEvery;
+
+    /*
+     * deltas requested but not received yet
+     */
+    private int outstanding;
+
+    private Flow.Subscription subscription;
+
+    private DeltaSubscriber(final AbstractMutableBuilder<?, D, ?> builder,
+            final int batchSize, final int mergeEvery, final Runnable merge) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        this.builder = Objects.requireNonNull(builder);
+        this.batchSize = batchSize;
+        this.mergeEvery = mergeEvery;
+        this.merge = merge;
+        this.buffer = new ArrayList<>(batchSize);
+    }
+
+    /**
+     * Stop receiving deltas. Deltas already received are applied and
+     * {@link #done()} completes.
+     */
+    public void cancel() {
+        this.lock.lock();
+        try {
+            if (this.subscription != null) {
+                this.subscription.cancel();
+            }
+            applyBuffer();
+        } catch (final RuntimeException e) {
+            this.done.completeExceptionally(e);
+        } finally {
+            this.lock.unlock();
+        }
+        this.done.complete(null);
+    }
+
+    /**
+     * Completes when the stream completed and the last deltas were applied
+     * and merged, or when the subscriber was cancelled. Completes
+     * exceptionally if the stream failed or applying or merging failed.
+     *
+     * @return completion of this subscriber.
+     */
+    public CompletableFuture<Void> done() {
+        return this.done.thenApply(Function.identity());
+    }
+
+    /**
+     * Apply the deltas of a partial batch now rather than when the batch
+     * fills. The rest of the batch remains requested.
+     */
+    public void flush() {
+        this.lock.lock();
+        try {
+            applyBuffer();
+        } catch (final RuntimeException e) {
+            fail(e);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        this.lock.lock();
+        try {
+            applyBuffer();
+            if (this.merge != null) {
+                this.merge.run();
+            }
+        } catch (final RuntimeException e) {
+            this.done.completeExceptionally(e);
+        } finally {
+            this.lock.unlock();
+        }
+        this.done.complete(null);
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        this.lock.lock();
+        try {
+            applyBuffer();
+        } catch (final RuntimeException e) {
+            throwable.addSuppressed(e);
+        } finally {
+            this.lock.unlock();
+        }
+        this.done.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onNext(final D item) {
+        this.lock.lock();
+        try {
+            if (this.done.isDone()) {
+                return;
+            }
+            this.buffer.add(Objects.requireNonNull(item));
+            if (--this.outstanding == 0) {
+                applyBuffer();
+                ++this.batches;
+                if (this.merge != null && this.batches % this.mergeEvery == 0) {
+                    this.merge.run();
+                }
+                request();
+            }
+        } catch (final RuntimeException e) {
+            fail(e);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+        this.lock.lock();
+        try {
+            if (this.subscription != null || this.done.isDone()) {
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+            request();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /*
+     * apply buffered deltas; caller holds the lock
+     */
+    private void applyBuffer() {
+        if (!this.buffer.isEmpty()) {
+            final ArrayList<D> batch = this.buffer;
+            this.buffer = new ArrayList<>(this.batchSize);
+            this.builder.applyAll(batch);
+        }
+    }
+
+    /*
+     * give up after a failure; caller holds the lock
+     */
+    private void fail(final RuntimeException e) {
+        if (this.subscription != null) {
+            this.subscription.cancel();
+        }
+        this.done.completeExceptionally(e);
+    }
+
+    /*
+     * request the next batch; caller holds the lock
+     */
+    private void request() {
+        this.outstanding = this.batchSize;
+        this.subscription.request(this.batchSize);
+    }
+
+}
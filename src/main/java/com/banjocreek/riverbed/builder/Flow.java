@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+/**
+ * <p>
+ * Reactive stream interfaces with the same shape and rules as
+ * {@code java.util.concurrent.Flow}, which is not available on Java 8. On
+ * newer runtimes, adapting to the platform interfaces is a matter of
+ * forwarding each method.
+ * </p>
+ */
+public final class Flow {
+
+    /**
+     * Producer of items for {@link Subscriber subscribers}.
+     *
+     * @param <T>
+     *            published item type.
+     */
+    @FunctionalInterface
+    public interface Publisher<T> {
+
+        /**
+         * Add a subscriber. The publisher calls
+         * {@link Subscriber#onSubscribe(Subscription)} before anything else.
+         *
+         * @param subscriber
+         *            subscriber to add.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+
+    }
+
+    /**
+     * Receiver of items. Methods are called in sequence, never concurrently.
+     *
+     * @param <T>
+     *            received item type.
+     */
+    public interface Subscriber<T> {
+
+        /**
+         * Called when the stream completed normally.
+         */
+        void onComplete();
+
+        /**
+         * Called when the stream failed. No further methods are called.
+         *
+         * @param throwable
+         *            failure.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called with each item, only as requested.
+         *
+         * @param item
+         *            next item.
+         */
+        void onNext(T item);
+
+        /**
+         * Called first, with the subscription to request items through.
+         *
+         * @param subscription
+         *            new subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+    }
+
+    /**
+     * Link between a publisher and a subscriber.
+     */
+    public interface Subscription {
+
+        /**
+         * Stop receiving items, eventually.
+         */
+        void cancel();
+
+        /**
+         * Add demand for items. Requesting fewer than one item fails the
+         * subscription.
+         *
+         * @param n
+         *            number of additional items.
+         */
+        void request(long n);
+
+    }
+
+    private Flow() {
+    }
+
+}
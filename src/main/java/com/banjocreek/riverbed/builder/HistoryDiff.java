@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Divergent tails of two builder histories after their nearest common
+ * ancestor, as returned by {@link AbstractImmutableBuilder#diff}. When the
+ * source tail is empty, the target extends the source, and a result built from
+ * the source can be brought up to date by applying only the target tail.
+ *
+ * @param <D>
+ *            delta type.
+ */
+public final class HistoryDiff<D> {
+
+    private final List<D> source;
+
+    private final List<D> target;
+
+    HistoryDiff(final List<D> source, final List<D> target) {
+        this.source = Collections.unmodifiableList(source);
+        this.target = Collections.unmodifiableList(target);
+    }
+
+    /**
+     * Whether the target only adds deltas to the source.
+     *
+     * @return true if the source tail is empty.
+     */
+    public boolean isAppendOnly() {
+        return this.source.isEmpty();
+    }
+
+    /**
+     * Deltas of the builder {@code diff} was invoked on, after the common
+     * ancestor.
+     *
+     * @return source deltas, oldest first.
+     */
+    public List<D> sourceTail() {
+        return this.source;
+    }
+
+    /**
+     * Deltas of the builder passed to {@code diff}, after the common ancestor.
+     *
+     * @return target deltas, oldest first.
+     */
+    public List<D> targetTail() {
+        return this.target;
+    }
+
+}
@@ -17,6 +17,9 @@
  */
 package com.banjocreek.riverbed.builder;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /**
  * An immutable builder captures recoverable build state in every operation.
  * This is meant for cases where a client creates common configuration then
@@ -39,6 +42,29 @@ public interface ImmutableBuilder<R, P> {
      */
     R build();
 
+    /**
+     * Build the root type off the calling thread. The build runs on a virtual
+     * thread where the runtime supports them and on the common fork join pool
+     * otherwise.
+     *
+     * @return future result of {@link #build()}.
+     */
+    default CompletableFuture<R> buildAsync() {
+        return buildAsync(DefaultExecutor.INSTANCE);
+    }
+
+    /**
+     * Build the root type on the supplied executor.
+     *
+     * @param executor
+     *            executor to run the build on.
+     *
+     * @return future result of {@link #build()}.
+     */
+    default CompletableFuture<R> buildAsync(final Executor executor) {
+        return CompletableFuture.supplyAsync(this::build, executor);
+    }
+
     /**
      * Return a parent builder. In an immutable builder, the original parent
      * cannot be returned. Rather, a builder of the same type as the original
@@ -51,4 +77,26 @@ public interface ImmutableBuilder<R, P> {
      */
     P done();
 
+    /**
+     * Return a parent builder, computed off the calling thread as for
+     * {@link #buildAsync()}.
+     *
+     * @return future result of {@link #done()}.
+     */
+    default CompletableFuture<P> doneAsync() {
+        return doneAsync(DefaultExecutor.INSTANCE);
+    }
+
+    /**
+     * Return a parent builder, computed on the supplied executor.
+     *
+     * @param executor
+     *            executor to run the build on.
+     *
+     * @return future result of {@link #done()}.
+     */
+    default CompletableFuture<P> doneAsync(final Executor executor) {
+        return CompletableFuture.supplyAsync(this::done, executor);
+    }
+
 }
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Opt-in behaviors for an immutable builder lineage. Options are fixed when
+ * the root builder is created and are shared by every builder derived from
+ * it.
+ *
+ * @param <T>
+ *            type of the folded state.
+ * @param <D>
+ *            type of the deltas captured by the builder.
+ */
+public final class ImmutableOptions<T, D> {
+
+    private static final ImmutableOptions<?, ?> DEFAULTS = new ImmutableOptions<>(
+            null, 0, null, null, false, null, null, false);
+
+    /**
+     * Options that reproduce the plain behavior: every build folds the
+     * complete history.
+     *
+     * @return default options.
+     */
+    @SuppressWarnings("unchecked")
+    public static <TT, DD> ImmutableOptions<TT, DD> defaults() {
+        return (ImmutableOptions<TT, DD>) DEFAULTS;
+    }
+
+    private final UnaryOperator<T> copier;
+
+    private final int checkpointInterval;
+
+    private final BiFunction<? super D, ? super D, Optional<D>> coalescer;
+
+    private final Composition<D> composition;
+
+    private final boolean memoize;
+
+    private final BuildCache cache;
+
+    private final LineageInterner interner;
+
+    private final boolean indexed;
+
+    private ImmutableOptions(final UnaryOperator<T> copier,
+            final int checkpointInterval,
+            final BiFunction<? super D, ? super D, Optional<D>> coalescer,
+            final Composition<D> composition, final boolean memoize,
+            final BuildCache cache, final LineageInterner interner,
+            final boolean indexed) {
+        this.copier = copier;
+        this.checkpointInterval = checkpointInterval;
+        this.coalescer = coalescer;
+        this.composition = composition;
+        this.memoize = memoize;
+        this.cache = cache;
+        this.interner = interner;
+        this.indexed = indexed;
+    }
+
+    /**
+     * <p>
+     * Keep folded state at selected points of the lineage. A build starts from
+     * the nearest checkpoint and replays only the deltas applied after it. A
+     * build nested in another build's constructor also keeps the state its
+     * last delta was applied to once a second nested build applies a delta to
+     * that same state, since such builds are usually repeated.
+     * </p>
+     * <p>
+     * The copier must produce a copy of the state that is independent of its
+     * source, i.e. mutating one must not affect the other. Checkpointed state
+     * is never handed to the mutator or the constructors directly.
+     * </p>
+     *
+     * @param copier
+     *            produces an independent copy of a state.
+     * @param interval
+     *            keep a checkpoint every this many deltas. Zero means only
+     *            checkpoints requested explicitly are kept.
+     *
+     * @return options with checkpoints enabled.
+     */
+    public ImmutableOptions<T, D> withCheckpoints(
+            final UnaryOperator<T> copier, final int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("negative checkpoint interval");
+        }
+        return new ImmutableOptions<>(Objects.requireNonNull(copier),
+                interval, this.coalescer, this.composition, this.memoize,
+                this.cache, this.interner, this.indexed);
+    }
+
+    /**
+     * <p>
+     * Merge a new delta into its predecessor when a builder is derived,
+     * instead of adding a link to the lineage. Given the previous delta and
+     * the new one, the coalescer returns a single equivalent delta or empty if
+     * the two cannot be combined.
+     * </p>
+     * <p>
+     * Applying the combined delta must have the same effect as applying the
+     * previous delta followed by the new one. Neither input may be modified.
+     * </p>
+     *
+     * @param coalescer
+     *            combines adjacent deltas.
+     *
+     * @return options with coalescing enabled.
+     */
+    public ImmutableOptions<T, D> withCoalescing(
+            final BiFunction<? super D, ? super D, Optional<D>> coalescer) {
+        return new ImmutableOptions<>(this.copier, this.checkpointInterval,
+                Objects.requireNonNull(coalescer), this.composition,
+                this.memoize, this.cache, this.interner, this.indexed);
+    }
+
+    /**
+     * <p>
+     * Reduce long histories in parallel. When a build must replay more than a
+     * few thousand deltas, runs of adjacent deltas are accumulated on the
+     * pool, ranges are joined as a balanced tree and the much shorter result
+     * is applied to the state. Deltas that do not compose are applied in
+     * sequence as usual.
+     * </p>
+     * <p>
+     * Accumulating must be equivalent to applying the deltas in sequence, and
+     * no delta may be modified. Interval checkpoints falling inside a parallel
+     * reduction are not captured.
+     * </p>
+     *
+     * @param pool
+     *            pool that runs the reduction.
+     * @param accumulator
+     *            creates an accumulator starting from a delta.
+     *
+     * @return options with parallel folding enabled.
+     */
+    public ImmutableOptions<T, D> withParallelFold(final ForkJoinPool pool,
+            final Function<? super D, ? extends DeltaAccumulator<D>> accumulator) {
+        return new ImmutableOptions<>(this.copier, this.checkpointInterval,
+                this.coalescer, new Composition<>(Objects.requireNonNull(pool),
+                        Objects.requireNonNull(accumulator)), this.memoize,
+                this.cache, this.interner, this.indexed);
+    }
+
+    /**
+     * <p>
+     * Look up results in a shared, bounded cache before folding. The same
+     * cache can serve any number of lineages.
+     * </p>
+     * <p>
+     * As with {@link #withMemoizedResults() memoization}, the mutator and
+     * both constructors must be pure and the results safe to share. Each
+     * cached result also keeps its builder's history reachable until it is
+     * evicted.
+     * </p>
+     *
+     * @param cache
+     *            cache to use.
+     *
+     * @return options with cached results.
+     */
+    public ImmutableOptions<T, D> withCache(final BuildCache cache) {
+        return new ImmutableOptions<>(this.copier, this.checkpointInterval,
+                this.coalescer, this.composition, this.memoize,
+                Objects.requireNonNull(cache), this.interner, this.indexed);
+    }
+
+    /**
+     * Keep a rolling hash and a skip pointer with every delta, so
+     * {@link AbstractImmutableBuilder#lineageKey() lineage keys} hash in
+     * constant time and
+     * {@link AbstractImmutableBuilder#diff(AbstractImmutableBuilder) diffs}
+     * find the common ancestor in logarithmic time. Without an index both
+     * walk the history, and each delta costs two fields less.
+     *
+     * @return options with indexed histories.
+     */
+    public ImmutableOptions<T, D> withIndexedHistory() {
+        return new ImmutableOptions<>(this.copier, this.checkpointInterval,
+                this.coalescer, this.composition, this.memoize, this.cache,
+                this.interner, true);
+    }
+
+    /**
+     * Collapse structurally identical histories into one instance. Deltas
+     * must implement value-based {@code equals} and {@code hashCode}.
+     * Interned histories are {@link #withIndexedHistory() indexed}.
+     *
+     * @param interner
+     *            table to intern histories in.
+     *
+     * @return options with interning enabled.
+     */
+    public ImmutableOptions<T, D> withInterning(final LineageInterner interner) {
+        return new ImmutableOptions<>(this.copier, this.checkpointInterval,
+                this.coalescer, this.composition, this.memoize, this.cache,
+                Objects.requireNonNull(interner), true);
+    }
+
+    /**
+     * <p>
+     * Remember what each builder produces. The first invocation of
+     * {@link ImmutableBuilder#build()} or {@link ImmutableBuilder#done()} on a
+     * builder computes the result and later invocations return the same
+     * instance. Concurrent first invocations compute the result once.
+     * </p>
+     * <p>
+     * Only use this when the mutator and both constructors are pure and the
+     * results can safely be shared by every caller.
+     * </p>
+     *
+     * @return options with memoized results.
+     */
+    public ImmutableOptions<T, D> withMemoizedResults() {
+        return new ImmutableOptions<>(this.copier, this.checkpointInterval,
+                this.coalescer, this.composition, true, this.cache,
+                this.interner, this.indexed);
+    }
+
+    BuildCache cache() {
+        return this.cache;
+    }
+
+    boolean checkpointAt(final int depth) {
+        return this.checkpointInterval > 0
+                && depth % this.checkpointInterval == 0;
+    }
+
+    boolean checkpoints() {
+        return this.copier != null;
+    }
+
+    Optional<D> coalesce(final D previous, final D next) {
+        return this.coalescer == null ? Optional.empty() : this.coalescer
+                .apply(previous, next);
+    }
+
+    Composition<D> composition() {
+        return this.composition;
+    }
+
+    boolean indexes() {
+        return this.indexed;
+    }
+
+    LineageInterner interner() {
+        return this.interner;
+    }
+
+    boolean memoizes() {
+        return this.memoize;
+    }
+
+    UnaryOperator<T> copier() {
+        return this.copier;
+    }
+
+    T copy(final T state) {
+        return this.copier.apply(state);
+    }
+
+}
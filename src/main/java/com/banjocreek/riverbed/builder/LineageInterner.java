@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ * Hash-consing table for immutable builder histories. Lineages that intern
+ * through the same table share a single instance of every structurally
+ * identical history, so independently constructed but identical templates
+ * occupy memory once and, when built by equal constructors, hit the same
+ * {@link BuildCache} entries.
+ * </p>
+ * <p>
+ * Histories are only shared between lineages that create, mutate and copy
+ * state with the same objects, e.g. root builders of the same class created
+ * with the same options. Lineages that handle state differently intern into
+ * separate partitions of the table, so they never see each other's
+ * checkpoints. Entries are held weakly and disappear when no builder refers
+ * to them.
+ * </p>
+ */
+public final class LineageInterner {
+
+    /*
+     * partitions by state handling; partitions are held by their lineages
+     */
+    private final HashMap<Scope, WeakReference<Table>> tables = new HashMap<>();
+
+    /**
+     * Number of distinct histories currently interned.
+     *
+     * @return number of entries.
+     */
+    public int size() {
+        int rval = 0;
+        for (final Table t : live()) {
+            rval += t.size();
+        }
+        return rval;
+    }
+
+    /*
+     * Partition for lineages whose state is handled by the given objects,
+     * compared by identity.
+     */
+    Table table(final Object... stateHandling) {
+        final Scope scope = new Scope(stateHandling);
+        synchronized (this.tables) {
+            this.tables.values().removeIf(ref -> ref.get() == null);
+            final WeakReference<Table> ref = this.tables.get(scope);
+            Table rval = ref == null ? null : ref.get();
+            if (rval == null) {
+                rval = new Table();
+                this.tables.put(scope, new WeakReference<>(rval));
+            }
+            return rval;
+        }
+    }
+
+    private Table[] live() {
+        synchronized (this.tables) {
+            return this.tables.values().stream().map(WeakReference::get)
+                    .filter(t -> t != null).toArray(Table[]::new);
+        }
+    }
+
+    /*
+     * identity of a lineage's state handling
+     */
+    private static final class Scope {
+
+        private final Object[] parts;
+
+        Scope(final Object[] parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Scope)) {
+                return false;
+            }
+            final Object[] other = ((Scope) obj).parts;
+            if (other.length != this.parts.length) {
+                return false;
+            }
+            for (int i = 0; i < this.parts.length; ++i) {
+                if (other[i] != this.parts[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.stream(this.parts).mapToInt(System::identityHashCode)
+                    .reduce(1, (h, x) -> 31 * h + x);
+        }
+
+    }
+
+    /*
+     * One partition of the table.
+     */
+    static final class Table {
+
+        private final WeakHashMap<Object, WeakReference<Object>> entries = new WeakHashMap<>();
+
+        /*
+         * Return the canonical instance equal to the argument, registering
+         * the argument if there is none.
+         */
+        @SuppressWarnings("unchecked")
+        <X> X intern(final X value) {
+            synchronized (this.entries) {
+                final WeakReference<Object> ref = this.entries.get(value);
+                final Object existing = ref == null ? null : ref.get();
+                if (existing != null) {
+                    return (X) existing;
+                }
+                this.entries.put(value, new WeakReference<>(value));
+                return value;
+            }
+        }
+
+        int size() {
+            synchronized (this.entries) {
+                return this.entries.size();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+/**
+ * How a mutable builder guards its state. None of the strategies use monitors,
+ * so a virtual thread that blocks in a mutator or constructor while holding
+ * the builder's lock does not pin its carrier thread.
+ *
+ * @see MutableOptions#withLocking(Locking)
+ */
+public enum Locking {
+
+    /**
+     * Do not lock. Only for builders confined to one thread at a time; the
+     * caller is responsible for safe publication when handing a builder to
+     * another thread.
+     */
+    NONE,
+
+    /**
+     * Guard state with a reentrant lock. Deltas and merges are serialized.
+     * This is the default.
+     */
+    REENTRANT,
+
+    /**
+     * Guard state with a stamped lock. Deltas are serialized, but merges of
+     * in-place state that has no queued deltas share a read lock and so run
+     * concurrently with each other. The lock is not reentrant: a mutator or
+     * constructor must not call back into its builder.
+     */
+    STAMPED
+
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Publishes merged results of a mutable builder as it changes. A subscriber
+ * first receives the current result, then a new result after each change.
+ * Results are merged once for all subscribers, and only from complete deltas:
+ * a batch applied in one step is never seen half applied. The exception is a
+ * builder with {@link MutableOptions#withConcurrentState() concurrent state}
+ * or without locking, such as a striped map builder, which applies a batch
+ * one delta at a time; a result may then reflect part of a batch.
+ * </p>
+ * <p>
+ * Results are conflated. A subscriber that has no outstanding demand when a
+ * new result is published only keeps the latest one, which it receives on its
+ * next request; intermediate results are skipped. With a batch window, the
+ * first change after a merge starts the window and the builder is merged once
+ * when it ends, however many deltas arrive meanwhile.
+ * </p>
+ * <p>
+ * A failing merge fails every subscriber and closes the publisher.
+ * </p>
+ *
+ * @param <P>
+ *            merged result type.
+ */
+public final class MergePublisher<P> implements Flow.Publisher<P>,
+        AutoCloseable {
+
+    /**
+     * Publish after every change, delivering on the default executor.
+     *
+     * @param builder
+     *            builder to publish.
+     *
+     * @return new publisher.
+     */
+    public static <P> MergePublisher<P> of(
+            final AbstractMutableBuilder<?, ?, P> builder) {
+        return of(builder, DefaultExecutor.INSTANCE);
+    }
+
+    /**
+     * Publish after every change.
+     *
+     * @param builder
+     *            builder to publish.
+     * @param executor
+     *            runs merges and delivers results.
+     *
+     * @return new publisher.
+     */
+    public static <P> MergePublisher<P> of(
+            final AbstractMutableBuilder<?, ?, P> builder,
+            final Executor executor) {
+        return new MergePublisher<>(builder, Objects.requireNonNull(executor),
+                null, 0L);
+    }
+
+    /**
+     * Publish at most once per batch window.
+     *
+     * @param builder
+     *            builder to publish.
+     * @param window
+     *            time from the first change to the merge that publishes it.
+     * @param unit
+     *            unit of {@code window}.
+     * @param scheduler
+     *            times windows, runs merges and delivers results.
+     *
+     * @return new publisher.
+     */
+    public static <P> MergePublisher<P> of(
+            final AbstractMutableBuilder<?, ?, P> builder, final long window,
+            final TimeUnit unit, final ScheduledExecutorService scheduler) {
+        if (window < 0) {
+            throw new IllegalArgumentException("negative window");
+        }
+        return new MergePublisher<>(builder, scheduler,
+                Objects.requireNonNull(scheduler), unit.toNanos(window));
+    }
+
+    private final AbstractMutableBuilder<?, ?, P> builder;
+
+    /*
+     * guarded by the emit lock, like last, lastVersion and merged
+     */
+    private boolean closed;
+
+    /*
+     * serializes merges so results are published in order
+     */
+    private final ReentrantLock emitLock = new ReentrantLock();
+
+    private final Executor executor;
+
+    private P last;
+
+    private long lastVersion;
+
+    private boolean merged;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final CopyOnWriteArrayList<Sub> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final Runnable watcher = this::changed;
+
+    private final long window;
+
+    private MergePublisher(final AbstractMutableBuilder<?, ?, P> builder,
+            final Executor executor,
+            final ScheduledExecutorService scheduler, final long window) {
+        this.builder = builder;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.window = window;
+        builder.watch(this.watcher);
+    }
+
+    /**
+     * Stop publishing. Subscribers complete once they received the latest
+     * result.
+     */
+    @Override
+    public void close() {
+        this.builder.unwatch(this.watcher);
+        this.emitLock.lock();
+        try {
+            this.closed = true;
+        } finally {
+            this.emitLock.unlock();
+        }
+        this.subscriptions.forEach(Sub::complete);
+        this.subscriptions.clear();
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super P> subscriber) {
+        final Sub sub = new Sub(Objects.requireNonNull(subscriber));
+        this.emitLock.lock();
+        try {
+            if (this.closed) {
+                sub.complete();
+                return;
+            }
+            this.subscriptions.add(sub);
+        } finally {
+            this.emitLock.unlock();
+        }
+        sub.signal();
+        this.executor.execute(() -> emit(sub));
+    }
+
+    private void changed() {
+        if (!this.subscriptions.isEmpty()
+                && this.scheduled.compareAndSet(false, true)) {
+            final Runnable task = () -> {
+                this.scheduled.set(false);
+                emit(null);
+            };
+            if (this.scheduler == null) {
+                this.executor.execute(task);
+            } else {
+                this.scheduler.schedule(task, this.window,
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /*
+     * Merge if the builder changed since the last merge and offer the result
+     * to every subscriber, or offer the last result to a new subscriber.
+     */
+    private void emit(final Sub target) {
+        this.emitLock.lock();
+        try {
+            if (this.closed || this.subscriptions.isEmpty()) {
+                return;
+            }
+            final long current = this.builder.version();
+            if (!this.merged || current != this.lastVersion) {
+                final P result = Objects.requireNonNull(this.builder.merge(),
+                        "merge produced null");
+                this.last = result;
+                this.lastVersion = current;
+                this.merged = true;
+                this.subscriptions.forEach(s -> s.offer(result));
+            } else if (target != null) {
+                target.offer(this.last);
+            }
+        } catch (final RuntimeException e) {
+            this.closed = true;
+            this.builder.unwatch(this.watcher);
+            this.subscriptions.forEach(s -> s.fail(e));
+            this.subscriptions.clear();
+        } finally {
+            this.emitLock.unlock();
+        }
+    }
+
+    /*
+     * Subscription holding the latest undelivered result. Signals are
+     * delivered on the executor by at most one task at a time.
+     */
+    private final class Sub implements Flow.Subscription, Runnable {
+
+        private volatile boolean cancelled;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        private volatile boolean done;
+
+        private volatile Throwable error;
+
+        private final AtomicReference<P> latest = new AtomicReference<>();
+
+        /*
+         * only touched by the delivering task
+         */
+        private boolean started;
+
+        private final Flow.Subscriber<? super P> subscriber;
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        Sub(final Flow.Subscriber<? super P> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+            MergePublisher.this.subscriptions.remove(this);
+            this.latest.set(null);
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                this.error = new IllegalArgumentException(
+                        "request must be positive");
+            } else {
+                this.demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d
+                        + n);
+            }
+            signal();
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!this.started) {
+                    this.started = true;
+                    this.subscriber.onSubscribe(this);
+                }
+                deliver();
+                missed = this.wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        void complete() {
+            this.done = true;
+            signal();
+        }
+
+        void fail(final Throwable t) {
+            this.error = t;
+            signal();
+        }
+
+        void offer(final P result) {
+            if (!this.cancelled) {
+                this.latest.set(result);
+                signal();
+            }
+        }
+
+        void signal() {
+            if (this.wip.getAndIncrement() == 0) {
+                MergePublisher.this.executor.execute(this);
+            }
+        }
+
+        private void deliver() {
+            while (!this.cancelled) {
+                final Throwable t = this.error;
+                if (t != null) {
+                    cancel();
+                    this.subscriber.onError(t);
+                    return;
+                }
+                final P next = this.demand.get() > 0 ? this.latest
+                        .getAndSet(null) : null;
+                if (next == null) {
+                    if (this.done && this.latest.get() == null) {
+                        cancel();
+                        this.subscriber.onComplete();
+                    }
+                    return;
+                }
+                if (this.demand.get() != Long.MAX_VALUE) {
+                    this.demand.decrementAndGet();
+                }
+                this.subscriber.onNext(next);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder;
+
+import java.util.Objects;
+import java.util.function.UnaryOperator;
+
+/**
+ * Opt-in behaviors for a mutable builder. Options are fixed when the builder
+ * is created.
+ *
+ * @param <T>
+ *            type of the builder state.
+ * @param <D>
+ *            type of the deltas applied to the builder.
+ */
+public final class MutableOptions<T, D> {
+
+    /*
+     * how deltas reach the state
+     */
+    enum Mode {
+        /*
+         * one delta at a time under the builder's lock
+         */
+        LOCKED,
+        /*
+         * compare-and-set of immutable state
+         */
+        FUNCTIONAL,
+        /*
+         * queued, then applied in batches by whichever thread holds the lock
+         */
+        COMBINING,
+        /*
+         * state synchronizes itself
+         */
+        CONCURRENT
+    }
+
+    private static final MutableOptions<?, ?> DEFAULTS = new MutableOptions<>(
+            Mode.LOCKED, Locking.REENTRANT, false, null, false, false);
+
+    /**
+     * Options that reproduce the plain behavior: state is mutated in place
+     * under a lock owned by the builder.
+     *
+     * @return default options.
+     */
+    @SuppressWarnings("unchecked")
+    public static <TT, DD> MutableOptions<TT, DD> defaults() {
+        return (MutableOptions<TT, DD>) DEFAULTS;
+    }
+
+    private final boolean cacheMerge;
+
+    private final UnaryOperator<T> copier;
+
+    private final Locking locking;
+
+    private final Mode mode;
+
+    /*
+     * whether the copier may run without a lock
+     */
+    private final boolean optimistic;
+
+    private final boolean snapshot;
+
+    private MutableOptions(final Mode mode, final Locking locking,
+            final boolean cacheMerge, final UnaryOperator<T> copier,
+            final boolean optimistic, final boolean snapshot) {
+        this.mode = mode;
+        this.locking = locking;
+        this.cacheMerge = cacheMerge;
+        this.copier = copier;
+        this.optimistic = optimistic;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * <p>
+     * Reuse the result of {@link MutableBuilder#merge()} until a delta is
+     * applied. Repeated merges of an unchanged builder then return the same
+     * instance without running the constructor or taking the builder's lock.
+     * </p>
+     * <p>
+     * Only use this when merged results are not modified by their recipients,
+     * since every caller shares one instance.
+     * </p>
+     *
+     * @return options with cached merge results.
+     */
+    public MutableOptions<T, D> withCachedMerge() {
+        return new MutableOptions<>(this.mode, this.locking, true, this.copier,
+                this.optimistic, this.snapshot);
+    }
+
+    /**
+     * <p>
+     * Combine deltas from many threads. Applying a delta queues it without
+     * locking; whichever thread acquires the builder's lock next, as producer
+     * or in {@link MutableBuilder#merge()}, applies everything queued in one
+     * batch. Deltas from one thread are applied in the order that thread
+     * applied them, and a merge sees every delta whose application completed
+     * before the merge started.
+     * </p>
+     * <p>
+     * This replaces {@link #withFunctionalState() functional state}.
+     * </p>
+     *
+     * @return options with combined delta ingestion.
+     */
+    public MutableOptions<T, D> withCombining() {
+        return new MutableOptions<>(Mode.COMBINING, this.locking,
+                this.cacheMerge, this.copier, this.optimistic, this.snapshot);
+    }
+
+    /**
+     * <p>
+     * Rely on the state to synchronize itself. Deltas are applied and merges
+     * constructed without taking the builder's lock, so the mutator and the
+     * constructor must be safe to call concurrently on the same state. The
+     * mutator must return the state it was given.
+     * </p>
+     * <p>
+     * This replaces {@link #withCombining() combining} and
+     * {@link #withFunctionalState() functional state}, and makes
+     * {@link #withSnapshotMerge() snapshot merges} unnecessary.
+     * </p>
+     *
+     * @return options with self-synchronizing state.
+     */
+    public MutableOptions<T, D> withConcurrentState() {
+        return new MutableOptions<>(Mode.CONCURRENT, this.locking,
+                this.cacheMerge, this.copier, this.optimistic, this.snapshot);
+    }
+
+    /**
+     * <p>
+     * Treat state as immutable values. Deltas are applied without locking by
+     * computing the next state and publishing it with compare-and-set, and
+     * merges read the latest published state.
+     * </p>
+     * <p>
+     * The mutator must return a new state and leave its input untouched, and
+     * it must be free of side effects: under contention it may be invoked
+     * more than once for the same delta. This replaces
+     * {@link #withCombining() combining}.
+     * </p>
+     *
+     * @return options with lock-free state updates.
+     */
+    public MutableOptions<T, D> withFunctionalState() {
+        return new MutableOptions<>(Mode.FUNCTIONAL, this.locking,
+                this.cacheMerge, this.copier, this.optimistic, this.snapshot);
+    }
+
+    /**
+     * <p>
+     * Choose how the builder guards its state. Functional and concurrent state
+     * are not locked by the builder, so this has no effect on them.
+     * </p>
+     * <p>
+     * Snapshot merges always use a {@link Locking#STAMPED stamped} lock,
+     * unless locking is {@link Locking#NONE disabled}, in which case merges
+     * run on the state itself.
+     * </p>
+     *
+     * @param locking
+     *            locking strategy.
+     *
+     * @return options with the locking strategy.
+     */
+    public MutableOptions<T, D> withLocking(final Locking locking) {
+        return new MutableOptions<>(this.mode, Objects.requireNonNull(locking),
+                this.cacheMerge, this.copier, this.optimistic, this.snapshot);
+    }
+
+    /**
+     * Take every setting that does not depend on how state is represented
+     * from other options. This lets builders that hide their state type, such
+     * as map and list builders, accept options from clients. Functional and
+     * concurrent state are not taken.
+     *
+     * @param source
+     *            options to take settings from.
+     *
+     * @return options with the settings of {@code source}.
+     */
+    public MutableOptions<T, D> withSettingsOf(final MutableOptions<?, ?> source) {
+        final boolean representational = source.mode == Mode.FUNCTIONAL
+                || source.mode == Mode.CONCURRENT;
+        return new MutableOptions<>(representational ? this.mode : source.mode,
+                source.locking, source.cacheMerge, this.copier,
+                this.optimistic, source.snapshot);
+    }
+
+    /**
+     * <p>
+     * Run the constructor on a snapshot of the state, outside the builder's
+     * lock, so an expensive merge does not stall contributors. The snapshot is
+     * taken with the {@link #withStateCopier(UnaryOperator) state copier} in a
+     * short critical section. With an
+     * {@link #withOptimisticStateCopier(UnaryOperator) optimistic copier},
+     * merges first try to copy without locking and lock only if a delta was
+     * applied meanwhile.
+     * </p>
+     * <p>
+     * Map and list builders supply their own copier. Other builders must set
+     * one.
+     * </p>
+     * <p>
+     * Unless locking is {@link Locking#NONE disabled}, the builder is then
+     * guarded by a {@link Locking#STAMPED stamped} lock whatever
+     * {@link #withLocking(Locking) locking} is chosen, so applying a delta is
+     * not reentrant: a mutator or constructor must not call back into its
+     * builder.
+     * </p>
+     *
+     * @return options with snapshot merges.
+     */
+    public MutableOptions<T, D> withSnapshotMerge() {
+        return new MutableOptions<>(this.mode, this.locking, this.cacheMerge,
+                this.copier, this.optimistic, true);
+    }
+
+    /**
+     * <p>
+     * Set how to copy state, like {@link #withStateCopier(UnaryOperator)},
+     * and let snapshot merges run it without locking.
+     * </p>
+     * <p>
+     * The copier may then run while its source is being mutated. Whatever it
+     * reads, it must terminate and must not change shared state; it may throw
+     * a runtime exception or produce an inconsistent copy, which is discarded.
+     * An {@link Error} is never discarded. Copiers of plain
+     * collections such as {@code ArrayList::new} qualify, copiers that follow
+     * links of a structure being mutated may not.
+     * </p>
+     *
+     * @param copier
+     *            state copier that tolerates concurrent mutation of its
+     *            source.
+     *
+     * @return options with an optimistic state copier.
+     */
+    public MutableOptions<T, D> withOptimisticStateCopier(
+            final UnaryOperator<T> copier) {
+        return new MutableOptions<>(this.mode, this.locking, this.cacheMerge,
+                Objects.requireNonNull(copier), true, this.snapshot);
+    }
+
+    /**
+     * Set how to copy state. Mutating the copy must not affect the source and
+     * vice versa. The copier only runs while no delta is being applied.
+     *
+     * @param copier
+     *            state copier.
+     *
+     * @return options with a state copier.
+     */
+    public MutableOptions<T, D> withStateCopier(final UnaryOperator<T> copier) {
+        return new MutableOptions<>(this.mode, this.locking, this.cacheMerge,
+                Objects.requireNonNull(copier), false, this.snapshot);
+    }
+
+    UnaryOperator<T> copier() {
+        return this.copier;
+    }
+
+    boolean snapshots() {
+        return this.snapshot;
+    }
+
+    boolean cachesMerge() {
+        return this.cacheMerge;
+    }
+
+    Locking locking() {
+        return this.locking;
+    }
+
+    Mode mode() {
+        return this.mode;
+    }
+
+    boolean optimistic() {
+        return this.optimistic;
+    }
+
+}
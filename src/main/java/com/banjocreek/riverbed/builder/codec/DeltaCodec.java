@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.codec;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Binary form of the deltas of an immutable builder lineage. Implement this to
+ * persist lineages whose deltas are not covered by the codecs shipped with the
+ * map and list builders, or wrap one of those to add custom deltas.
+ * </p>
+ * <p>
+ * Every history is written together with the codec's {@link #version()}. A
+ * codec reads histories written by the same or an older version; the version
+ * being read is available from {@link HistoryInput#version()}.
+ * </p>
+ *
+ * @param <D>
+ *            delta type.
+ */
+public interface DeltaCodec<D> {
+
+    /**
+     * Read one delta.
+     *
+     * @param in
+     *            stream positioned at the delta.
+     *
+     * @return decoded delta.
+     *
+     * @throws IOException
+     *             if the delta is malformed or cannot be read.
+     */
+    D read(HistoryInput in) throws IOException;
+
+    /**
+     * Version of the encoding produced by {@link #write(Object, HistoryOutput)}.
+     *
+     * @return encoding version, at least 1.
+     */
+    int version();
+
+    /**
+     * Write one delta.
+     *
+     * @param delta
+     *            delta to encode.
+     * @param out
+     *            destination stream.
+     *
+     * @throws IOException
+     *             if the delta cannot be encoded or written.
+     */
+    void write(D delta, HistoryOutput out) throws IOException;
+
+}
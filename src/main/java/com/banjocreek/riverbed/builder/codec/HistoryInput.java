@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.codec;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ * Stream of builder histories written by {@link HistoryOutput}. Histories are
+ * read in the order they were written.
+ * </p>
+ * <p>
+ * Instances are not thread safe.
+ * </p>
+ */
+public final class HistoryInput implements Closeable {
+
+    /**
+     * Read histories from a channel.
+     *
+     * @param channel
+     *            source channel.
+     *
+     * @return history stream.
+     *
+     * @throws IOException
+     *             if the stream header cannot be read or is not recognized.
+     */
+    public static HistoryInput from(final ReadableByteChannel channel)
+            throws IOException {
+        return new HistoryInput(Channels.newInputStream(channel));
+    }
+
+    /*
+     * largest capacity reserved before elements are actually read
+     */
+    private static final int PRESIZE = 1024;
+
+    private final DataInputStream data;
+
+    private final ArrayList<Object> dictionary = new ArrayList<>();
+
+    /*
+     * tag of the next record, or -1 if not read yet
+     */
+    private int next = -1;
+
+    private int version;
+
+    /**
+     * Read histories from an input stream.
+     *
+     * @param in
+     *            source stream.
+     *
+     * @throws IOException
+     *             if the stream header cannot be read or is not recognized.
+     */
+    public HistoryInput(final InputStream in) throws IOException {
+        this.data = new DataInputStream(new BufferedInputStream(in));
+        if (this.data.readInt() != HistoryOutput.MAGIC) {
+            throw new IOException("not a builder history stream");
+        }
+        final int format = this.data.readInt();
+        if (format != HistoryOutput.FORMAT) {
+            throw new IOException("unsupported history format " + format);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.data.close();
+    }
+
+    /**
+     * Raw input for delta codecs.
+     *
+     * @return data input positioned after what has been read so far.
+     */
+    public DataInput data() {
+        return this.data;
+    }
+
+    /**
+     * Whether another history follows.
+     *
+     * @return true if {@link #readHistory(DeltaCodec)} will find a history.
+     *
+     * @throws IOException
+     *             if the stream cannot be read or the next record is not
+     *             recognized.
+     */
+    public boolean hasNext() throws IOException {
+        if (this.next < 0) {
+            final byte tag = this.data.readByte();
+            if (tag != HistoryOutput.RECORD && tag != HistoryOutput.END) {
+                throw new IOException("unknown record tag " + tag);
+            }
+            this.next = tag;
+        }
+        return this.next == HistoryOutput.RECORD;
+    }
+
+    /**
+     * Read the next history.
+     *
+     * @param codec
+     *            codec for the deltas.
+     *
+     * @return deltas of the history, oldest first.
+     *
+     * @throws IOException
+     *             if a delta is malformed, was written by a newer codec
+     *             version, or the stream cannot be read.
+     * @throws NoSuchElementException
+     *             if the stream has ended.
+     */
+    public <D> List<D> readHistory(final DeltaCodec<D> codec)
+            throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        this.next = -1;
+        this.version = readVarInt();
+        if (this.version > codec.version()) {
+            throw new IOException("unsupported delta version " + this.version);
+        }
+        final int size = readVarInt();
+        if (size < 0) {
+            throw new IOException("negative history size " + size);
+        }
+        final ArrayList<D> rval = new ArrayList<>(Math.min(size, PRESIZE));
+        for (int i = 0; i < size; ++i) {
+            rval.add(codec.read(this));
+        }
+        return rval;
+    }
+
+    /**
+     * Read an element count written with {@link DataOutput#writeInt(int)}.
+     * Callers should not size collections by the count alone, since a
+     * corrupt count that is too large is only caught when the input runs
+     * out.
+     *
+     * @return count, never negative.
+     *
+     * @throws IOException
+     *             if the count is negative or cannot be read.
+     */
+    public int readCount() throws IOException {
+        final int count = this.data.readInt();
+        if (count < 0) {
+            throw new IOException("negative count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Read a value written by {@link HistoryOutput#writeShared(Object, ValueCodec)}.
+     *
+     * @param codec
+     *            codec for the value.
+     *
+     * @return value read, may be null.
+     *
+     * @throws IOException
+     *             if the value is malformed or cannot be read.
+     */
+    @SuppressWarnings("unchecked")
+    public <X> X readShared(final ValueCodec<? extends X> codec)
+            throws IOException {
+        final int ref = readVarInt();
+        if (ref == 0) {
+            return null;
+        }
+        if (ref <= this.dictionary.size()) {
+            return (X) this.dictionary.get(ref - 1);
+        }
+        if (ref != this.dictionary.size() + 1) {
+            throw new IOException("bad value reference " + ref);
+        }
+        final X value = codec.read(this.data);
+        this.dictionary.add(value);
+        return value;
+    }
+
+    /**
+     * Read a value written by {@link HistoryOutput#writeValue(Object, ValueCodec)}.
+     *
+     * @param codec
+     *            codec for the value.
+     *
+     * @return value read, may be null.
+     *
+     * @throws IOException
+     *             if the value cannot be read.
+     */
+    public <X> X readValue(final ValueCodec<? extends X> codec)
+            throws IOException {
+        return this.data.readBoolean() ? codec.read(this.data) : null;
+    }
+
+    /**
+     * Codec version of the history being read.
+     *
+     * @return version the current history was written with.
+     */
+    public int version() {
+        return this.version;
+    }
+
+    private int readVarInt() throws IOException {
+        int rval = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = this.data.readUnsignedByte();
+            rval |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return rval;
+            }
+        }
+        throw new IOException("malformed length");
+    }
+
+}
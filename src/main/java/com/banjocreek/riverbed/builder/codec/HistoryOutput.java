@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.codec;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>
+ * Stream of encoded builder histories. Any number of histories may be written
+ * to one stream. Values written with
+ * {@link #writeShared(Object, ValueCodec)} are encoded once per stream and
+ * referenced afterwards, so keys repeated across deltas and histories cost a
+ * few bytes each.
+ * </p>
+ * <p>
+ * Instances are not thread safe.
+ * </p>
+ */
+public final class HistoryOutput implements Closeable, Flushable {
+
+    static final byte END = 0;
+
+    static final int FORMAT = 1;
+
+    static final int MAGIC = 0x52424844;
+
+    static final byte RECORD = 1;
+
+    /**
+     * Stream histories to a channel.
+     *
+     * @param channel
+     *            destination channel.
+     *
+     * @return history stream.
+     *
+     * @throws IOException
+     *             if the stream header cannot be written.
+     */
+    public static HistoryOutput to(final WritableByteChannel channel)
+            throws IOException {
+        return new HistoryOutput(Channels.newOutputStream(channel));
+    }
+
+    private static void writeVarInt(final DataOutput out, final int value)
+            throws IOException {
+        int rest = value;
+        while ((rest & ~0x7f) != 0) {
+            out.writeByte(rest & 0x7f | 0x80);
+            rest >>>= 7;
+        }
+        out.writeByte(rest);
+    }
+
+    private boolean closed;
+
+    private final DataOutputStream data;
+
+    private final HashMap<Object, Integer> dictionary = new HashMap<>();
+
+    /**
+     * Stream histories to an output stream.
+     *
+     * @param out
+     *            destination stream.
+     *
+     * @throws IOException
+     *             if the stream header cannot be written.
+     */
+    public HistoryOutput(final OutputStream out) throws IOException {
+        this.data = new DataOutputStream(new BufferedOutputStream(out));
+        this.data.writeInt(MAGIC);
+        this.data.writeInt(FORMAT);
+    }
+
+    /**
+     * Mark the end of the stream and close the destination.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!this.closed) {
+            this.closed = true;
+            this.data.writeByte(END);
+            this.data.close();
+        }
+    }
+
+    /**
+     * Raw output for delta codecs.
+     *
+     * @return data output positioned after what has been written so far.
+     */
+    public DataOutput data() {
+        return this.data;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.data.flush();
+    }
+
+    /**
+     * Write a history.
+     *
+     * @param deltas
+     *            deltas of the history, oldest first.
+     * @param codec
+     *            codec for the deltas.
+     *
+     * @throws IOException
+     *             if a delta cannot be encoded or the stream cannot be
+     *             written.
+     */
+    public <D> void writeHistory(final List<? extends D> deltas,
+            final DeltaCodec<? super D> codec) throws IOException {
+        this.data.writeByte(RECORD);
+        writeVarInt(this.data, codec.version());
+        writeVarInt(this.data, deltas.size());
+        for (final D delta : deltas) {
+            codec.write(delta, this);
+        }
+    }
+
+    /**
+     * Write a value that is likely to recur, such as a key. The first
+     * occurrence is encoded in full, later ones by reference. Values are
+     * matched by {@code equals}.
+     *
+     * @param value
+     *            value to write, may be null.
+     * @param codec
+     *            codec for the value.
+     *
+     * @throws IOException
+     *             if the value cannot be written.
+     */
+    public <X> void writeShared(final X value,
+            final ValueCodec<? super X> codec) throws IOException {
+        if (value == null) {
+            writeVarInt(this.data, 0);
+            return;
+        }
+        final Integer ref = this.dictionary.get(value);
+        if (ref != null) {
+            writeVarInt(this.data, ref);
+            return;
+        }
+        final int created = this.dictionary.size() + 1;
+        this.dictionary.put(value, created);
+        writeVarInt(this.data, created);
+        codec.write(value, this.data);
+    }
+
+    /**
+     * Write a value in full.
+     *
+     * @param value
+     *            value to write, may be null.
+     * @param codec
+     *            codec for the value.
+     *
+     * @throws IOException
+     *             if the value cannot be written.
+     */
+    public <X> void writeValue(final X value, final ValueCodec<? super X> codec)
+            throws IOException {
+        this.data.writeBoolean(value != null);
+        if (value != null) {
+            codec.write(value, this.data);
+        }
+    }
+
+}
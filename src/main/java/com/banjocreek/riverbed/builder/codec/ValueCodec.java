@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary form of the keys and values carried by deltas. Implementations are
+ * never handed null; absent values are handled by the history streams.
+ *
+ * @param <X>
+ *            type of value encoded.
+ */
+public interface ValueCodec<X> {
+
+    /**
+     * Strings of any length, as UTF-8. The buffer grows as bytes arrive, so a
+     * corrupt length fails at the end of the input rather than allocating
+     * the length up front.
+     */
+    ValueCodec<String> STRING = new ValueCodec<String>() {
+
+        @Override
+        public String read(final DataInput in) throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("negative string length " + length);
+            }
+            byte[] bytes = new byte[Math.min(length, 8192)];
+            in.readFully(bytes);
+            while (bytes.length < length) {
+                final int read = bytes.length;
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length,
+                        2L * read));
+                in.readFully(bytes, read, bytes.length - read);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(final String value, final DataOutput out)
+                throws IOException {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+    };
+
+    /**
+     * Read a value.
+     *
+     * @param in
+     *            source of the encoded value.
+     *
+     * @return decoded value.
+     *
+     * @throws IOException
+     *             if the value cannot be read.
+     */
+    X read(DataInput in) throws IOException;
+
+    /**
+     * Write a value.
+     *
+     * @param value
+     *            value to encode, never null.
+     * @param out
+     *            destination of the encoded value.
+     *
+     * @throws IOException
+     *             if the value cannot be written.
+     */
+    void write(X value, DataOutput out) throws IOException;
+
+}
@@ -17,7 +17,6 @@
  */
 package com.banjocreek.riverbed.builder.list;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.Function;
@@ -34,11 +33,43 @@ public class AbstractImmutableListBuilder<E, R, P> extends
         super(previous, delta);
     }
 
+    /**
+     * Derive a builder by applying several operations in order, e.g. a
+     * history decoded with {@link ListOpCodec}.
+     *
+     * @param previous
+     *            builder to derive from.
+     * @param deltas
+     *            operations to apply, oldest first.
+     */
+    protected AbstractImmutableListBuilder(
+            final AbstractImmutableBuilder<List<E>, UnaryOperator<List<E>>, R, P> previous,
+            final Iterable<? extends UnaryOperator<List<E>>> deltas) {
+        super(previous, deltas);
+    }
+
     protected AbstractImmutableListBuilder(
             final Function<List<E>, R> rootConstructor,
             final Function<List<E>, P> parentConstructor) {
-        super(ArrayList::new, (l, op) -> op.apply(l), rootConstructor,
-                parentConstructor);
+        this(rootConstructor, parentConstructor, ListOptions.defaults());
+    }
+
+    /**
+     * Create a root builder with the specified settings.
+     *
+     * @param rootConstructor
+     *            root constructor.
+     * @param parentConstructor
+     *            parent constructor.
+     * @param options
+     *            settings of the lineage.
+     */
+    protected AbstractImmutableListBuilder(
+            final Function<List<E>, R> rootConstructor,
+            final Function<List<E>, P> parentConstructor,
+            final ListOptions<E> options) {
+        super(options.initializer(), options.mutator(), options
+                .lineageOptions(), rootConstructor, parentConstructor);
     }
 
     protected final UnaryOperator<List<E>> genAdd(final E elem) {
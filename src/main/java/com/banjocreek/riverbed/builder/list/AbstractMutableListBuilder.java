@@ -20,10 +20,12 @@ package com.banjocreek.riverbed.builder.list;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
 import com.banjocreek.riverbed.builder.AbstractMutableBuilder;
+import com.banjocreek.riverbed.builder.MutableOptions;
 
 public class AbstractMutableListBuilder<E, P> extends
         AbstractMutableBuilder<List<E>, UnaryOperator<List<E>>, P> {
@@ -32,6 +34,25 @@ public class AbstractMutableListBuilder<E, P> extends
         super(ArrayList::new, (l, op) -> op.apply(l), constructor);
     }
 
+    /**
+     * Create a builder with concurrency settings taken from {@code options}.
+     * State is mutated in place, so functional state is not available. The
+     * builder copies its own state for snapshot merges.
+     *
+     * @param constructor
+     *            parent constructor.
+     * @param options
+     *            concurrency settings.
+     */
+    protected AbstractMutableListBuilder(final Function<List<E>, P> constructor,
+            final MutableOptions<?, ?> options) {
+        super(ArrayList::new, (l, op) -> op.apply(l), MutableOptions
+                .<List<E>, UnaryOperator<List<E>>> defaults()
+                .withOptimisticStateCopier(ArrayList::new)
+                .withSettingsOf(options),
+                constructor);
+    }
+
     protected final void doAdd(final E elem) {
         apply(Op.add(elem));
     }
@@ -40,6 +61,20 @@ public class AbstractMutableListBuilder<E, P> extends
         apply(Op.addAll(elems));
     }
 
+    /**
+     * Apply operations collected by {@code body} in one step, under a single
+     * acquisition of the builder's lock. Nothing is applied if {@code body}
+     * fails.
+     *
+     * @param body
+     *            collects operations.
+     */
+    protected final void doBatch(final Consumer<? super ListBatch<E>> body) {
+        final ListBatch<E> batch = new ListBatch<>();
+        body.accept(batch);
+        applyAll(batch.ops());
+    }
+
     protected final void doClear() {
         apply(Op.clear());
     }
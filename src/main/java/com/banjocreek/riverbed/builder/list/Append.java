@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.list;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+
+/**
+ * Append elements to the end of the list.
+ */
+final class Append<E> implements UnaryOperator<List<E>> {
+
+    /**
+     * Largest number of elements a coalesced append may carry. This keeps
+     * deriving a builder cheap even when many appends are chained.
+     */
+    static final int COALESCE_LIMIT = 64;
+
+    private final List<E> elems;
+
+    Append(final Collection<? extends E> elems) {
+        this.elems = new ArrayList<>(elems);
+    }
+
+    @Override
+    public List<E> apply(final List<E> l) {
+        l.addAll(this.elems);
+        return l;
+    }
+
+    /*
+     * elements appended by this operation, for encoding
+     */
+    List<E> elems() {
+        return Collections.unmodifiableList(this.elems);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof Append
+                && this.elems.equals(((Append<?>) obj).elems);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.elems.hashCode() + 1;
+    }
+
+    /**
+     * Combine with a subsequent append.
+     *
+     * @param next
+     *            append applied after this one.
+     *
+     * @return combined append or empty if the result would be too large.
+     */
+    Optional<UnaryOperator<List<E>>> combine(final Append<E> next) {
+        if (this.elems.size() + next.elems.size() > COALESCE_LIMIT) {
+            return Optional.empty();
+        }
+        final ArrayList<E> merged = new ArrayList<>(this.elems);
+        merged.addAll(next.elems);
+        return Optional.of(new Append<>(merged));
+    }
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.list;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import com.banjocreek.riverbed.builder.DeltaAccumulator;
+
+/**
+ * Accumulates a run of list operations for parallel folds. Consecutive
+ * appends are collected into one list that grows in place; a clear replaces
+ * everything before it.
+ */
+final class ListAccumulator<E> implements
+        DeltaAccumulator<UnaryOperator<List<E>>> {
+
+    /*
+     * elements of an append run, or null
+     */
+    private ArrayList<E> elems;
+
+    /*
+     * the whole run if it is not an append run
+     */
+    private UnaryOperator<List<E>> op;
+
+    ListAccumulator(final UnaryOperator<List<E>> first) {
+        start(first);
+    }
+
+    @Override
+    public boolean add(final UnaryOperator<List<E>> next) {
+        if (next instanceof Clear) {
+            start(next);
+            return true;
+        }
+        if (this.elems == null || !(next instanceof Append)) {
+            return false;
+        }
+        this.elems.addAll(((Append<E>) next).elems());
+        return true;
+    }
+
+    @Override
+    public boolean addAll(final DeltaAccumulator<UnaryOperator<List<E>>> later) {
+        final ListAccumulator<E> next = (ListAccumulator<E>) later;
+        if (next.op instanceof Clear) {
+            this.elems = null;
+            this.op = next.op;
+            return true;
+        }
+        if (this.elems == null || next.elems == null) {
+            return false;
+        }
+        this.elems.addAll(next.elems);
+        return true;
+    }
+
+    @Override
+    public UnaryOperator<List<E>> result() {
+        return this.elems == null ? this.op : new Append<>(this.elems);
+    }
+
+    private void start(final UnaryOperator<List<E>> first) {
+        if (first instanceof Append) {
+            this.elems = new ArrayList<>(((Append<E>) first).elems());
+            this.op = null;
+        } else {
+            this.elems = null;
+            this.op = first;
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.list;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * <p>
+ * Collects list operations to apply to a mutable list builder in one step.
+ * Appends are coalesced as they are collected and a clear discards everything
+ * collected before it, so a batch applies at most one clear and one append.
+ * </p>
+ * <p>
+ * A batch is only valid inside the scope it was passed to.
+ * </p>
+ *
+ * @param <E>
+ *            element type.
+ */
+public final class ListBatch<E> {
+
+    private boolean cleared;
+
+    private final ArrayList<E> elems = new ArrayList<>();
+
+    ListBatch() {
+    }
+
+    /**
+     * Append an element.
+     *
+     * @param elem
+     *            element to append.
+     *
+     * @return this batch.
+     */
+    public ListBatch<E> add(final E elem) {
+        this.elems.add(elem);
+        return this;
+    }
+
+    /**
+     * Append elements.
+     *
+     * @param elems
+     *            elements to append.
+     *
+     * @return this batch.
+     */
+    public ListBatch<E> addAll(final Collection<? extends E> elems) {
+        this.elems.addAll(elems);
+        return this;
+    }
+
+    /**
+     * Remove all elements, discarding everything collected so far.
+     *
+     * @return this batch.
+     */
+    public ListBatch<E> clear() {
+        this.cleared = true;
+        this.elems.clear();
+        return this;
+    }
+
+    /*
+     * collected operations
+     */
+    List<UnaryOperator<List<E>>> ops() {
+        final ArrayList<UnaryOperator<List<E>>> rval = new ArrayList<>(2);
+        if (this.cleared) {
+            rval.add(Op.clear());
+        }
+        if (!this.elems.isEmpty()) {
+            rval.add(Op.addAll(this.elems));
+        }
+        return rval;
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.list;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.UnaryOperator;
+
+import com.banjocreek.riverbed.builder.codec.DeltaCodec;
+import com.banjocreek.riverbed.builder.codec.HistoryInput;
+import com.banjocreek.riverbed.builder.codec.HistoryOutput;
+import com.banjocreek.riverbed.builder.codec.ValueCodec;
+
+/**
+ * Codec for the operations of list builders. Operations that are not
+ * generated by {@link AbstractImmutableListBuilder} are handed to the custom
+ * codec, if one is given.
+ *
+ * @param <E>
+ *            element type.
+ */
+public final class ListOpCodec<E> implements DeltaCodec<UnaryOperator<List<E>>> {
+
+    private static final byte APPEND = 1;
+
+    private static final byte CLEAR = 0;
+
+    private static final byte CUSTOM = 127;
+
+    private final DeltaCodec<UnaryOperator<List<E>>> custom;
+
+    private final ValueCodec<E> elems;
+
+    /**
+     * Create a codec for the list builder operations.
+     *
+     * @param elems
+     *            element codec.
+     */
+    public ListOpCodec(final ValueCodec<E> elems) {
+        this(elems, null);
+    }
+
+    /**
+     * Create a codec for the list builder operations and custom operations.
+     *
+     * @param elems
+     *            element codec.
+     * @param custom
+     *            codec for any other operation, or null. Its records are
+     *            not versioned separately, so it should tag them itself if
+     *            its encoding may change.
+     */
+    public ListOpCodec(final ValueCodec<E> elems,
+            final DeltaCodec<UnaryOperator<List<E>>> custom) {
+        this.elems = Objects.requireNonNull(elems);
+        this.custom = custom;
+    }
+
+    @Override
+    public UnaryOperator<List<E>> read(final HistoryInput in)
+            throws IOException {
+        final DataInput data = in.data();
+        final byte tag = data.readByte();
+        switch (tag) {
+        case CLEAR:
+            return Op.clear();
+        case APPEND:
+            final int size = in.readCount();
+            final ArrayList<E> appended = new ArrayList<>();
+            for (int i = 0; i < size; ++i) {
+                appended.add(in.readValue(this.elems));
+            }
+            return Op.addAll(appended);
+        case CUSTOM:
+            if (this.custom != null) {
+                return this.custom.read(in);
+            }
+            throw new IOException("no codec for custom list operation");
+        default:
+            throw new IOException("unknown list operation " + tag);
+        }
+    }
+
+    @Override
+    public int version() {
+        return 1;
+    }
+
+    @Override
+    public void write(final UnaryOperator<List<E>> delta,
+            final HistoryOutput out) throws IOException {
+        if (delta instanceof Clear) {
+            out.data().writeByte(CLEAR);
+        } else if (delta instanceof Append) {
+            final List<E> appended = ((Append<E>) delta).elems();
+            out.data().writeByte(APPEND);
+            out.data().writeInt(appended.size());
+            for (final E elem : appended) {
+                out.writeValue(elem, this.elems);
+            }
+        } else if (this.custom != null) {
+            out.data().writeByte(CUSTOM);
+            this.custom.write(delta, out);
+        } else {
+            throw new IOException("cannot encode "
+                    + delta.getClass().getSimpleName());
+        }
+    }
+
+}
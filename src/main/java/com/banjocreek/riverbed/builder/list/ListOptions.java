@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.list;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import com.banjocreek.riverbed.builder.BuildCache;
+import com.banjocreek.riverbed.builder.ImmutableOptions;
+import com.banjocreek.riverbed.builder.LineageInterner;
+
+/**
+ * Settings of an immutable list builder lineage, fixed when the root builder
+ * is created. Settings are independent of each other, so any combination
+ * can be used.
+ *
+ * @param <E>
+ *            element type.
+ */
+public final class ListOptions<E> {
+
+    private static final ListOptions<?> DEFAULTS = new ListOptions<>(-1,
+            false, null, false, null, null, false);
+
+    /*
+     * State handling is shared by every lineage, so lineages with the same
+     * settings intern into the same histories.
+     */
+    private static final UnaryOperator<List<Object>> COPIER = ArrayList::new;
+
+    private static final Supplier<List<Object>> INITIALIZER = ArrayList::new;
+
+    private static final BiFunction<List<Object>, UnaryOperator<List<Object>>, List<Object>> MUTATOR = (
+            l, op) -> op.apply(l);
+
+    /**
+     * Plain settings: the list is folded from an empty list on every build.
+     *
+     * @return default options.
+     */
+    @SuppressWarnings("unchecked")
+    public static <EE> ListOptions<EE> defaults() {
+        return (ListOptions<EE>) DEFAULTS;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <X> X shared(final Object handling) {
+        return (X) handling;
+    }
+
+    private final BuildCache cache;
+
+    /*
+     * checkpoint spacing, or -1 if the lineage does not copy state
+     */
+    private final int checkpointInterval;
+
+    private final boolean coalesce;
+
+    private final boolean indexed;
+
+    private final LineageInterner interner;
+
+    private final boolean memoize;
+
+    private final ForkJoinPool pool;
+
+    private ListOptions(final int checkpointInterval, final boolean coalesce,
+            final ForkJoinPool pool, final boolean memoize,
+            final BuildCache cache, final LineageInterner interner,
+            final boolean indexed) {
+        this.checkpointInterval = checkpointInterval;
+        this.coalesce = coalesce;
+        this.pool = pool;
+        this.memoize = memoize;
+        this.cache = cache;
+        this.interner = interner;
+        this.indexed = indexed;
+    }
+
+    /**
+     * Cache results in a shared, bounded cache.
+     *
+     * @param cache
+     *            cache to use.
+     *
+     * @return options with cached results.
+     *
+     * @see ImmutableOptions#withCache(BuildCache)
+     */
+    public ListOptions<E> withCache(final BuildCache cache) {
+        return new ListOptions<>(this.checkpointInterval, this.coalesce,
+                this.pool, this.memoize, Objects.requireNonNull(cache),
+                this.interner, this.indexed);
+    }
+
+    /**
+     * Keep folded state every {@code interval} operations so builds replay
+     * only the operations applied after the nearest checkpoint. This also lets
+     * batch builds and variants fold shared history once.
+     *
+     * @param interval
+     *            checkpoint spacing. Zero keeps only checkpoints requested by
+     *            the builder.
+     *
+     * @return options with interval checkpoints.
+     *
+     * @see ImmutableOptions#withCheckpoints(UnaryOperator, int)
+     */
+    public ListOptions<E> withCheckpoints(final int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("negative checkpoint interval");
+        }
+        return new ListOptions<>(interval, this.coalesce, this.pool,
+                this.memoize, this.cache, this.interner, this.indexed);
+    }
+
+    /**
+     * Merge a new operation into its predecessor where possible, e.g.
+     * consecutive additions, so chains of small changes keep a short history.
+     *
+     * @return options with coalescing enabled.
+     *
+     * @see ImmutableOptions#withCoalescing(BiFunction)
+     */
+    public ListOptions<E> withCoalescing() {
+        return new ListOptions<>(this.checkpointInterval, true, this.pool,
+                this.memoize, this.cache, this.interner, this.indexed);
+    }
+
+    /**
+     * Index histories for constant time lineage keys and logarithmic time
+     * diffs.
+     *
+     * @return options with indexed histories.
+     *
+     * @see ImmutableOptions#withIndexedHistory()
+     */
+    public ListOptions<E> withIndexedHistory() {
+        return new ListOptions<>(this.checkpointInterval, this.coalesce,
+                this.pool, this.memoize, this.cache, this.interner, true);
+    }
+
+    /**
+     * Collapse structurally identical histories into one instance.
+     *
+     * @param interner
+     *            table to intern histories in.
+     *
+     * @return options with interning enabled.
+     *
+     * @see ImmutableOptions#withInterning(LineageInterner)
+     */
+    public ListOptions<E> withInterning(final LineageInterner interner) {
+        return new ListOptions<>(this.checkpointInterval, this.coalesce,
+                this.pool, this.memoize, this.cache,
+                Objects.requireNonNull(interner), this.indexed);
+    }
+
+    /**
+     * Remember what each builder produces.
+     *
+     * @return options with memoized results.
+     *
+     * @see ImmutableOptions#withMemoizedResults()
+     */
+    public ListOptions<E> withMemoizedResults() {
+        return new ListOptions<>(this.checkpointInterval, this.coalesce,
+                this.pool, true, this.cache, this.interner, this.indexed);
+    }
+
+    /**
+     * Reduce long histories in parallel. Adjacent additions are accumulated
+     * on the pool before they are applied to the list.
+     *
+     * @param pool
+     *            pool that runs the reduction.
+     *
+     * @return options with parallel folding enabled.
+     */
+    public ListOptions<E> withParallelFold(final ForkJoinPool pool) {
+        return new ListOptions<>(this.checkpointInterval, this.coalesce,
+                Objects.requireNonNull(pool), this.memoize, this.cache,
+                this.interner, this.indexed);
+    }
+
+    /*
+     * creates the initial state of the lineage
+     */
+    Supplier<List<E>> initializer() {
+        return shared(INITIALIZER);
+    }
+
+    /*
+     * lineage options as configured
+     */
+    ImmutableOptions<List<E>, UnaryOperator<List<E>>> lineageOptions() {
+        ImmutableOptions<List<E>, UnaryOperator<List<E>>> rval = ImmutableOptions
+                .<List<E>, UnaryOperator<List<E>>> defaults();
+        if (this.checkpointInterval >= 0) {
+            rval = rval.withCheckpoints(shared(COPIER),
+                    this.checkpointInterval);
+        }
+        if (this.coalesce) {
+            rval = rval.withCoalescing(Op::coalesce);
+        }
+        if (this.pool != null) {
+            rval = rval.withParallelFold(this.pool, ListAccumulator::new);
+        }
+        if (this.memoize) {
+            rval = rval.withMemoizedResults();
+        }
+        if (this.cache != null) {
+            rval = rval.withCache(this.cache);
+        }
+        if (this.interner != null) {
+            rval = rval.withInterning(this.interner);
+        }
+        if (this.indexed) {
+            rval = rval.withIndexedHistory();
+        }
+        return rval;
+    }
+
+    /*
+     * applies operations to the state
+     */
+    BiFunction<List<E>, UnaryOperator<List<E>>, List<E>> mutator() {
+        return shared(MUTATOR);
+    }
+
+}
@@ -18,30 +18,47 @@
 package com.banjocreek.riverbed.builder.list;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.function.UnaryOperator;
 
 interface Op {
 
     static <E> UnaryOperator<List<E>> add(final E elem) {
-        return l -> {
-            l.add(elem);
-            return l;
-        };
+        return new Append<>(Collections.singletonList(elem));
     }
 
     static <E> UnaryOperator<List<E>> addAll(final Collection<? extends E> elems) {
-        return l -> {
-            l.addAll(elems);
-            return l;
-        };
+        return new Append<>(elems);
     }
 
     static <E> UnaryOperator<List<E>> clear() {
-        return l -> {
-            l.clear();
-            return l;
-        };
+        return Clear.instance();
+    }
+
+    /**
+     * Combine adjacent operations into one when that is equivalent to
+     * applying them in sequence. The combined operation is kept small.
+     *
+     * @param previous
+     *            earlier operation.
+     * @param next
+     *            later operation.
+     *
+     * @return combined operation or empty if the operations cannot be
+     *         combined.
+     */
+    static <E> Optional<UnaryOperator<List<E>>> coalesce(
+            final UnaryOperator<List<E>> previous,
+            final UnaryOperator<List<E>> next) {
+        if (next instanceof Clear) {
+            return Optional.of(next);
+        }
+        if (previous instanceof Append && next instanceof Append) {
+            return ((Append<E>) previous).combine((Append<E>) next);
+        }
+        return Optional.empty();
     }
 
 }
@@ -24,7 +24,7 @@ import java.util.function.Function;
 import com.banjocreek.riverbed.builder.AbstractImmutableBuilder;
 
 public abstract class AbstractImmutableMapBuilder<K, V, R, P> extends
-        AbstractImmutableBuilder<HashMapKernel<K, V>, MapDelta<K, V>, R, P> {
+        AbstractImmutableBuilder<MapKernel<K, V>, MapDelta<K, V>, R, P> {
 
     protected AbstractImmutableMapBuilder(
             final AbstractImmutableMapBuilder<K, V, R, P> previous,
@@ -32,12 +32,53 @@ public abstract class AbstractImmutableMapBuilder<K, V, R, P> extends
         super(previous, delta);
     }
 
+    /**
+     * Derive a builder by applying several deltas in order, e.g. a history
+     * decoded with {@link MapDeltaCodec}.
+     *
+     * @param previous
+     *            builder to derive from.
+     * @param deltas
+     *            deltas to apply, oldest first.
+     */
+    protected AbstractImmutableMapBuilder(
+            final AbstractImmutableMapBuilder<K, V, R, P> previous,
+            final Iterable<? extends MapDelta<K, V>> deltas) {
+        super(previous, deltas);
+    }
+
     protected AbstractImmutableMapBuilder(
             final Function<Map<K, V>, R> rootConstructor,
             final Function<Map<K, V>, P> parentConstructor) {
-        super(HashMapKernel::new, Helper::mutate, Helper
-                .adaptConstructor(rootConstructor), Helper
-                .adaptConstructor(parentConstructor));
+        this(rootConstructor, parentConstructor, MapOptions.defaults());
+    }
+
+    /**
+     * Create a root builder with the specified settings.
+     *
+     * @param rootConstructor
+     *            root constructor.
+     * @param parentConstructor
+     *            parent constructor.
+     * @param options
+     *            settings of the lineage.
+     */
+    protected AbstractImmutableMapBuilder(
+            final Function<Map<K, V>, R> rootConstructor,
+            final Function<Map<K, V>, P> parentConstructor,
+            final MapOptions<K, V> options) {
+        super(options.initializer(), options.mutator(), options
+                .lineageOptions(), Helper.adaptConstructor(rootConstructor),
+                Helper.adaptConstructor(parentConstructor));
+    }
+
+    /*
+     * folded state, for writing to a template store
+     */
+    final MapContents<K, V> contents() {
+        final MapContents<K, V> rval = new MapContents<>();
+        state().exportTo(rval);
+        return rval;
     }
 
     /**
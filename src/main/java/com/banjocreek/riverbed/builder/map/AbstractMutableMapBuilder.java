@@ -19,18 +19,85 @@ package com.banjocreek.riverbed.builder.map;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import com.banjocreek.riverbed.builder.AbstractMutableBuilder;
+import com.banjocreek.riverbed.builder.MutableOptions;
 
 public abstract class AbstractMutableMapBuilder<K, V, P> extends
-        AbstractMutableBuilder<HashMapKernel<K, V>, MapDelta<K, V>, P> {
+        AbstractMutableBuilder<MapKernel<K, V>, MapDelta<K, V>, P> {
 
     protected AbstractMutableMapBuilder(final Function<Map<K, V>, P> constructor) {
         super(HashMapKernel::new, Helper::mutate, Helper
                 .adaptConstructor(constructor));
     }
 
+    /**
+     * Create a builder with concurrency settings taken from {@code options}.
+     * State is mutated in place, so functional state is not available. The
+     * builder copies its own state for snapshot merges.
+     *
+     * @param constructor
+     *            parent constructor.
+     * @param options
+     *            concurrency settings.
+     */
+    protected AbstractMutableMapBuilder(
+            final Function<Map<K, V>, P> constructor,
+            final MutableOptions<?, ?> options) {
+        super(HashMapKernel::new, Helper::mutate, MutableOptions
+                .<MapKernel<K, V>, MapDelta<K, V>> defaults()
+                .withOptimisticStateCopier(MapKernel::copy)
+                .withSettingsOf(options),
+                Helper.adaptConstructor(constructor));
+    }
+
+    /**
+     * <p>
+     * Create a builder whose state is spread over stripes chosen by key hash,
+     * each with its own lock. Deltas for keys in different stripes are
+     * applied in parallel, so many threads contributing entries or defaults
+     * for distinct keys scale with the number of stripes. Clearing and
+     * resetting every key lock all stripes and act as barriers. Merges lock
+     * all stripes and combine them; the result is the same as for an
+     * unstriped builder.
+     * </p>
+     * <p>
+     * Settings of {@code options} that concern locking the whole state are
+     * superseded by striping; merge caching is honored.
+     * </p>
+     *
+     * @param constructor
+     *            parent constructor.
+     * @param options
+     *            builder settings.
+     * @param stripes
+     *            number of stripes, rounded up to a power of two.
+     */
+    protected AbstractMutableMapBuilder(
+            final Function<Map<K, V>, P> constructor,
+            final MutableOptions<?, ?> options, final int stripes) {
+        super(() -> new StripedMapKernel<>(stripes), Helper::mutate,
+                MutableOptions.<MapKernel<K, V>, MapDelta<K, V>> defaults()
+                        .withSettingsOf(options).withConcurrentState(),
+                Helper.adaptConstructor(constructor));
+    }
+
+    /**
+     * Apply deltas collected by {@code body} in one step, under a single
+     * acquisition of the builder's lock. Nothing is applied if {@code body}
+     * fails.
+     *
+     * @param body
+     *            collects deltas.
+     */
+    protected final void doBatch(final Consumer<? super MapBatch<K, V>> body) {
+        final MapBatch<K, V> batch = new MapBatch<>();
+        body.accept(batch);
+        applyAll(batch.deltas());
+    }
+
     /**
      * Clear all builder state.
      */
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.util.function.Function;
+
+/**
+ * Entry function that sets a value outright, ignoring whatever was
+ * accumulated for its key. Kernels keep values this way so that the value
+ * can be recovered from the entry.
+ *
+ * @param <V>
+ *            value type.
+ */
+final class Constant<V> implements Function<Object, V> {
+
+    final V value;
+
+    Constant(final V value) {
+        this.value = value;
+    }
+
+    @Override
+    public V apply(final Object previous) {
+        return this.value;
+    }
+
+}
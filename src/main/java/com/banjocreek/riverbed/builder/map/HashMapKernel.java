@@ -43,6 +43,21 @@ final class HashMapKernel<K, V> implements MapKernel<K, V> {
      */
     private final HashSet<K> removed = new HashSet<>();
 
+    HashMapKernel() {
+    }
+
+    /**
+     * Copy constructor. The copy shares no mutable state with the source.
+     *
+     * @param source
+     *            kernel to copy.
+     */
+    HashMapKernel(final HashMapKernel<K, V> source) {
+        this.defaults.putAll(source.defaults);
+        this.entries.putAll(source.entries);
+        this.removed.addAll(source.removed);
+    }
+
     @Override
     public void clear() {
         this.entries.clear();
@@ -50,6 +65,11 @@ final class HashMapKernel<K, V> implements MapKernel<K, V> {
         this.defaults.clear();
     }
 
+    @Override
+    public HashMapKernel<K, V> copy() {
+        return new HashMapKernel<>(this);
+    }
+
     @Override
     public void defaults(final Map<K, V> additional) {
 
@@ -57,6 +77,13 @@ final class HashMapKernel<K, V> implements MapKernel<K, V> {
 
     }
 
+    @Override
+    public void exportTo(final MapContents<K, V> contents) {
+        contents.defaults.putAll(this.defaults);
+        contents.entries.putAll(this.entries);
+        contents.removed.addAll(this.removed);
+    }
+
     @Override
     public Map<K, V> merge() {
 
@@ -114,8 +141,11 @@ final class HashMapKernel<K, V> implements MapKernel<K, V> {
     @Override
     public void values(final Map<K, V> additional) {
 
+        /*
+         * a value replaces whatever was accumulated for its key
+         */
         additional.forEach((k, v) -> {
-            addEntry(k, any -> v);
+            this.entries.put(k, new Constant<>(v));
         });
 
     }
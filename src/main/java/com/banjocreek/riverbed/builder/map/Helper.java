@@ -18,18 +18,61 @@
 package com.banjocreek.riverbed.builder.map;
 
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
 
 final class Helper {
 
-    public static <K, V, X> Function<HashMapKernel<K, V>, X> adaptConstructor(
+    /**
+     * Largest number of keys a coalesced delta may carry. This keeps deriving
+     * a builder cheap even when many compatible deltas are chained.
+     */
+    static final int COALESCE_LIMIT = 64;
+
+    public static <K, V, M extends MapKernel<K, V>, X> Function<M, X> adaptConstructor(
             final Function<Map<K, V>, X> constructor) {
-        return mk -> constructor.apply(mk.merge());
+        return new Adapted<>(constructor);
+    }
+
+    /**
+     * Combine adjacent deltas into one when that is equivalent to applying
+     * them in sequence. The combined delta is kept small.
+     *
+     * @param previous
+     *            earlier delta.
+     * @param next
+     *            later delta.
+     *
+     * @return combined delta or empty if the deltas cannot be combined.
+     */
+    public static <K, V> Optional<MapDelta<K, V>> coalesce(
+            final MapDelta<K, V> previous, final MapDelta<K, V> next) {
+
+        if (next instanceof Nop) {
+            return Optional.of(previous);
+        }
+        if (previous instanceof Nop || next instanceof Clear) {
+            return Optional.of(next);
+        }
+        if (previous instanceof Values && next instanceof Values) {
+            return ((Values<K, V>) previous).combine((Values<K, V>) next);
+        }
+        if (previous instanceof Defaults && next instanceof Defaults) {
+            return ((Defaults<K, V>) previous).combine((Defaults<K, V>) next);
+        }
+        if (previous instanceof Remove && next instanceof Remove) {
+            return ((Remove<K, V>) previous).combine((Remove<K, V>) next);
+        }
+        if (previous instanceof Reset && next instanceof Reset) {
+            return ((Reset<K, V>) previous).combine((Reset<K, V>) next);
+        }
+        return Optional.empty();
+
     }
 
-    public static final <K, V> HashMapKernel<K, V> mutate(
-            final HashMapKernel<K, V> t, final MapDelta<K, V> u) {
+    public static final <K, V, M extends MapKernel<K, V>> M mutate(
+            final M t, final MapDelta<K, V> u) {
         u.applyTo(t);
         return t;
     }
@@ -40,4 +83,39 @@ final class Helper {
         }
     }
 
+    /*
+     * Constructor applied to the merged map. Adapters of the same constructor
+     * are equal, so results cached for one lineage serve every lineage
+     * created with that constructor.
+     */
+    private static final class Adapted<K, V, M extends MapKernel<K, V>, X>
+            implements Function<M, X> {
+
+        private final Function<Map<K, V>, X> constructor;
+
+        Adapted(final Function<Map<K, V>, X> constructor) {
+            this.constructor = constructor;
+        }
+
+        @Override
+        public X apply(final M kernel) {
+            return this.constructor.apply(kernel.merge());
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Adapted)) {
+                return false;
+            }
+            final Object other = ((Adapted<?, ?, ?, ?>) obj).constructor;
+            return other == this.constructor;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.constructor);
+        }
+
+    }
+
 }
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.banjocreek.riverbed.builder.DeltaAccumulator;
+
+/**
+ * Accumulates a run of map deltas for parallel folds. Consecutive values,
+ * defaults, removals or resets are collected into one map or key set that
+ * grows in place; a clear replaces everything before it.
+ */
+final class MapAccumulator<K, V> implements DeltaAccumulator<MapDelta<K, V>> {
+
+    /*
+     * delta kind of the open run, or the whole run if it cannot grow
+     */
+    private MapDelta<K, V> delta;
+
+    /*
+     * entries of a values or defaults run, or null
+     */
+    private HashMap<K, V> entries;
+
+    /*
+     * keys of a remove or reset run, or null
+     */
+    private HashSet<K> keys;
+
+    MapAccumulator(final MapDelta<K, V> first) {
+        start(first);
+    }
+
+    @Override
+    public boolean add(final MapDelta<K, V> next) {
+        if (next instanceof Nop) {
+            return true;
+        }
+        if (this.delta instanceof Nop || next instanceof Clear) {
+            start(next);
+            return true;
+        }
+        if (next.getClass() != this.delta.getClass()) {
+            return false;
+        }
+        if (next instanceof Values) {
+            this.entries.putAll(((Values<K, V>) next).entries());
+        } else if (next instanceof Defaults) {
+            this.entries.putAll(((Defaults<K, V>) next).entries());
+        } else if (next instanceof Remove) {
+            this.keys.addAll(((Remove<K, V>) next).keys());
+        } else if (next instanceof Reset) {
+            this.keys.addAll(((Reset<K, V>) next).keys());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addAll(final DeltaAccumulator<MapDelta<K, V>> later) {
+        final MapAccumulator<K, V> next = (MapAccumulator<K, V>) later;
+        if (next.delta instanceof Nop) {
+            return true;
+        }
+        if (this.delta instanceof Nop || next.delta instanceof Clear) {
+            adopt(next);
+            return true;
+        }
+        if (next.delta.getClass() != this.delta.getClass()) {
+            return false;
+        }
+        if (this.entries != null) {
+            if (this.entries.size() < next.entries.size()) {
+                this.entries.forEach(next.entries::putIfAbsent);
+                this.entries = next.entries;
+            } else {
+                this.entries.putAll(next.entries);
+            }
+        } else if (this.keys != null) {
+            if (this.keys.size() < next.keys.size()) {
+                next.keys.addAll(this.keys);
+                this.keys = next.keys;
+            } else {
+                this.keys.addAll(next.keys);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public MapDelta<K, V> result() {
+        if (this.delta instanceof Values) {
+            return new Values<>(this.entries);
+        }
+        if (this.delta instanceof Defaults) {
+            return new Defaults<>(this.entries);
+        }
+        if (this.delta instanceof Remove) {
+            return new Remove<>(this.keys);
+        }
+        if (this.delta instanceof Reset) {
+            return new Reset<>(this.keys);
+        }
+        return this.delta;
+    }
+
+    private void adopt(final MapAccumulator<K, V> other) {
+        this.delta = other.delta;
+        this.entries = other.entries;
+        this.keys = other.keys;
+    }
+
+    private void start(final MapDelta<K, V> first) {
+        this.delta = first;
+        this.entries = null;
+        this.keys = null;
+        if (first instanceof Values) {
+            this.entries = new HashMap<>(((Values<K, V>) first).entries());
+        } else if (first instanceof Defaults) {
+            this.entries = new HashMap<>(((Defaults<K, V>) first).entries());
+        } else if (first instanceof Remove) {
+            this.keys = new HashSet<>(((Remove<K, V>) first).keys());
+        } else if (first instanceof Reset) {
+            this.keys = new HashSet<>(((Reset<K, V>) first).keys());
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Collects map deltas to apply to a mutable map builder in one step. Adjacent
+ * operations of the same kind, such as consecutive values, are coalesced into
+ * a single delta as they are collected, and a clear discards everything
+ * collected before it.
+ * </p>
+ * <p>
+ * A batch is only valid inside the scope it was passed to.
+ * </p>
+ *
+ * @param <K>
+ *            key type.
+ * @param <V>
+ *            value type.
+ */
+public final class MapBatch<K, V> {
+
+    private final ArrayList<MapDelta<K, V>> deltas = new ArrayList<>();
+
+    /*
+     * entries of the open run, or null
+     */
+    private HashMap<K, V> entries;
+
+    /*
+     * keys of the open run, or null
+     */
+    private HashSet<K> keys;
+
+    private Run run = Run.NONE;
+
+    MapBatch() {
+    }
+
+    /**
+     * Clear all state, discarding everything collected so far.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> clear() {
+        close();
+        this.deltas.clear();
+        this.deltas.add(Clear.instance());
+        return this;
+    }
+
+    /**
+     * Register a default entry.
+     *
+     * @param key
+     *            key of default entry.
+     * @param value
+     *            value of default entry.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> defaults(final K key, final V value) {
+        open(Run.DEFAULTS).put(Objects.requireNonNull(key), value);
+        return this;
+    }
+
+    /**
+     * Register default entries.
+     *
+     * @param defaults
+     *            default entries.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> defaults(final Map<K, ? extends V> defaults) {
+        Helper.requireKeys(defaults.keySet());
+        open(Run.DEFAULTS).putAll(defaults);
+        return this;
+    }
+
+    /**
+     * Remove entries.
+     *
+     * @param toRemove
+     *            keys of entries to remove.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> remove(final Collection<K> toRemove) {
+        Helper.requireKeys(new HashSet<>(toRemove));
+        openKeys(Run.REMOVE).addAll(toRemove);
+        return this;
+    }
+
+    /**
+     * Remove an entry.
+     *
+     * @param toRemove
+     *            key of entry to remove.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> remove(final K toRemove) {
+        openKeys(Run.REMOVE).add(Objects.requireNonNull(toRemove));
+        return this;
+    }
+
+    /**
+     * Clear all state except for defaults.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> reset() {
+        close();
+        this.deltas.add(ResetAll.instance());
+        return this;
+    }
+
+    /**
+     * Clear state for the given keys except for defaults.
+     *
+     * @param toReset
+     *            keys to reset.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> reset(final Collection<? extends K> toReset) {
+        Helper.requireKeys(new HashSet<>(toReset));
+        openKeys(Run.RESET).addAll(toReset);
+        return this;
+    }
+
+    /**
+     * Clear state for a key except for its default.
+     *
+     * @param toReset
+     *            key to reset.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> reset(final K toReset) {
+        openKeys(Run.RESET).add(Objects.requireNonNull(toReset));
+        return this;
+    }
+
+    /**
+     * Update an entry. Updates are not coalesced.
+     *
+     * @param key
+     *            key of entry to update.
+     * @param mutate
+     *            mutation specification.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> updates(final K key,
+            final Function<? super V, ? extends V> mutate) {
+        close();
+        this.deltas.add(new Update<>(key, mutate));
+        return this;
+    }
+
+    /**
+     * Update entries. Updates are not coalesced.
+     *
+     * @param mutators
+     *            mutations to apply.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> updates(
+            final Map<K, Function<? super V, ? extends V>> mutators) {
+        if (!mutators.isEmpty()) {
+            close();
+            this.deltas.add(new Update<>(mutators));
+        }
+        return this;
+    }
+
+    /**
+     * Set an entry.
+     *
+     * @param key
+     *            key of entry.
+     * @param value
+     *            value of entry.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> values(final K key, final V value) {
+        open(Run.VALUES).put(Objects.requireNonNull(key), value);
+        return this;
+    }
+
+    /**
+     * Set entries.
+     *
+     * @param entries
+     *            entries.
+     *
+     * @return this batch.
+     */
+    public MapBatch<K, V> values(final Map<K, ? extends V> entries) {
+        Helper.requireKeys(entries.keySet());
+        open(Run.VALUES).putAll(entries);
+        return this;
+    }
+
+    /*
+     * collected deltas, closing the open run
+     */
+    List<MapDelta<K, V>> deltas() {
+        close();
+        return this.deltas;
+    }
+
+    /*
+     * turn the open run into a delta
+     */
+    private void close() {
+        switch (this.run) {
+        case VALUES:
+            this.deltas.add(new Values<>(this.entries));
+            break;
+        case DEFAULTS:
+            this.deltas.add(new Defaults<>(this.entries));
+            break;
+        case REMOVE:
+            this.deltas.add(new Remove<>(this.keys));
+            break;
+        case RESET:
+            this.deltas.add(new Reset<>(this.keys));
+            break;
+        default:
+        }
+        this.run = Run.NONE;
+        this.entries = null;
+        this.keys = null;
+    }
+
+    private HashMap<K, V> open(final Run kind) {
+        if (this.run != kind) {
+            close();
+            this.run = kind;
+            this.entries = new HashMap<>();
+        }
+        return this.entries;
+    }
+
+    private HashSet<K> openKeys(final Run kind) {
+        if (this.run != kind) {
+            close();
+            this.run = kind;
+            this.keys = new HashSet<>();
+        }
+        return this.keys;
+    }
+
+    private enum Run {
+        NONE, VALUES, DEFAULTS, REMOVE, RESET
+    }
+
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.function.Function;
+
+/**
+ * Accumulated state of a map kernel, exported for writing to or read from a
+ * template store. Entries are kept as the kernels keep them; only those that
+ * are {@link Constant} values can be written.
+ *
+ * @param <K>
+ *            key type.
+ * @param <V>
+ *            value type.
+ */
+final class MapContents<K, V> {
+
+    final HashMap<K, V> defaults = new HashMap<>();
+
+    final HashMap<K, Function<? super V, ? extends V>> entries = new HashMap<>();
+
+    final HashSet<K> removed = new HashSet<>();
+
+}
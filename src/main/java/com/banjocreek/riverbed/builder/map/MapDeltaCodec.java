@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.banjocreek.riverbed.builder.codec.DeltaCodec;
+import com.banjocreek.riverbed.builder.codec.HistoryInput;
+import com.banjocreek.riverbed.builder.codec.HistoryOutput;
+import com.banjocreek.riverbed.builder.codec.ValueCodec;
+
+/**
+ * <p>
+ * Codec for the deltas of map builders. Keys are written as shared values, so
+ * each distinct key is encoded once per stream.
+ * </p>
+ * <p>
+ * Update deltas carry functions and cannot be encoded. Deltas that are not
+ * generated by {@link AbstractImmutableMapBuilder} are handed to the custom
+ * codec, if one is given.
+ * </p>
+ *
+ * @param <K>
+ *            key type.
+ * @param <V>
+ *            value type.
+ */
+public final class MapDeltaCodec<K, V> implements DeltaCodec<MapDelta<K, V>> {
+
+    private static final byte CLEAR = 1;
+
+    private static final byte CUSTOM = 127;
+
+    private static final byte DEFAULTS = 4;
+
+    private static final byte NOP = 0;
+
+    private static final byte REMOVE = 5;
+
+    private static final byte RESET = 6;
+
+    private static final byte RESET_ALL = 2;
+
+    private static final byte VALUES = 3;
+
+    private final DeltaCodec<MapDelta<K, V>> custom;
+
+    private final ValueCodec<K> keys;
+
+    private final ValueCodec<V> values;
+
+    /**
+     * Create a codec for the map builder deltas.
+     *
+     * @param keys
+     *            key codec.
+     * @param values
+     *            value codec.
+     */
+    public MapDeltaCodec(final ValueCodec<K> keys, final ValueCodec<V> values) {
+        this(keys, values, null);
+    }
+
+    /**
+     * Create a codec for the map builder deltas and custom deltas.
+     *
+     * @param keys
+     *            key codec.
+     * @param values
+     *            value codec.
+     * @param custom
+     *            codec for any other delta, or null. Its records are
+     *            not versioned separately, so it should tag them itself if
+     *            its encoding may change.
+     */
+    public MapDeltaCodec(final ValueCodec<K> keys, final ValueCodec<V> values,
+            final DeltaCodec<MapDelta<K, V>> custom) {
+        this.keys = Objects.requireNonNull(keys);
+        this.values = Objects.requireNonNull(values);
+        this.custom = custom;
+    }
+
+    @Override
+    public MapDelta<K, V> read(final HistoryInput in) throws IOException {
+        final DataInput data = in.data();
+        final byte tag = data.readByte();
+        switch (tag) {
+        case NOP:
+            return Nop.instance();
+        case CLEAR:
+            return Clear.instance();
+        case RESET_ALL:
+            return ResetAll.instance();
+        case VALUES:
+            return new Values<>(readEntries(in));
+        case DEFAULTS:
+            return new Defaults<>(readEntries(in));
+        case REMOVE:
+            return new Remove<>(readKeys(in));
+        case RESET:
+            return new Reset<>(readKeys(in));
+        case CUSTOM:
+            if (this.custom != null) {
+                return this.custom.read(in);
+            }
+            throw new IOException("no codec for custom map delta");
+        default:
+            throw new IOException("unknown map delta " + tag);
+        }
+    }
+
+    @Override
+    public int version() {
+        return 1;
+    }
+
+    @Override
+    public void write(final MapDelta<K, V> delta, final HistoryOutput out)
+            throws IOException {
+        if (delta instanceof Nop) {
+            out.data().writeByte(NOP);
+        } else if (delta instanceof Clear) {
+            out.data().writeByte(CLEAR);
+        } else if (delta instanceof ResetAll) {
+            out.data().writeByte(RESET_ALL);
+        } else if (delta instanceof Values) {
+            out.data().writeByte(VALUES);
+            writeEntries(((Values<K, V>) delta).entries(), out);
+        } else if (delta instanceof Defaults) {
+            out.data().writeByte(DEFAULTS);
+            writeEntries(((Defaults<K, V>) delta).entries(), out);
+        } else if (delta instanceof Remove) {
+            out.data().writeByte(REMOVE);
+            writeKeys(((Remove<K, V>) delta).keys(), out);
+        } else if (delta instanceof Reset) {
+            out.data().writeByte(RESET);
+            writeKeys(((Reset<K, V>) delta).keys(), out);
+        } else if (this.custom != null && !(delta instanceof Update)) {
+            out.data().writeByte(CUSTOM);
+            this.custom.write(delta, out);
+        } else {
+            throw new IOException("cannot encode "
+                    + delta.getClass().getSimpleName());
+        }
+    }
+
+    private Map<K, V> readEntries(final HistoryInput in) throws IOException {
+        final int size = in.readCount();
+        final HashMap<K, V> rval = new HashMap<>();
+        for (int i = 0; i < size; ++i) {
+            final K key = in.readShared(this.keys);
+            rval.put(key, in.readValue(this.values));
+        }
+        return rval;
+    }
+
+    private Collection<K> readKeys(final HistoryInput in) throws IOException {
+        final int size = in.readCount();
+        final ArrayList<K> rval = new ArrayList<>();
+        for (int i = 0; i < size; ++i) {
+            rval.add(in.readShared(this.keys));
+        }
+        return rval;
+    }
+
+    private void writeEntries(final Map<K, V> entries, final HistoryOutput out)
+            throws IOException {
+        out.data().writeInt(entries.size());
+        for (final Map.Entry<K, V> e : entries.entrySet()) {
+            out.writeShared(e.getKey(), this.keys);
+            out.writeValue(e.getValue(), this.values);
+        }
+    }
+
+    private void writeKeys(final Collection<K> keys, final HistoryOutput out)
+            throws IOException {
+        out.data().writeInt(keys.size());
+        for (final K key : keys) {
+            out.writeShared(key, this.keys);
+        }
+    }
+
+}
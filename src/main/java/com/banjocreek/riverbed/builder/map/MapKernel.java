@@ -28,6 +28,14 @@ interface MapKernel<K, V> {
      */
     public void clear();
 
+    /**
+     * Copy this kernel. Mutating the copy must not affect this kernel and
+     * vice versa.
+     *
+     * @return independent copy.
+     */
+    public MapKernel<K, V> copy();
+
     /**
      * <p>
      * Set or update defaults. Any entries provided here will occur in the
@@ -46,6 +54,15 @@ interface MapKernel<K, V> {
      */
     public void defaults(final Map<K, V> additional);
 
+    /**
+     * Add this kernel's accumulated state to the given contents, for writing
+     * to a template store. The kernel is not changed.
+     *
+     * @param contents
+     *            contents to fill.
+     */
+    public void exportTo(MapContents<K, V> contents);
+
     public Map<K, V> merge();
 
     /**
@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import com.banjocreek.riverbed.builder.BuildCache;
+import com.banjocreek.riverbed.builder.ImmutableOptions;
+import com.banjocreek.riverbed.builder.LineageInterner;
+
+/**
+ * Settings of an immutable map builder lineage, fixed when the root builder
+ * is created. Settings are independent of each other, so any combination
+ * can be used, e.g. persistent state initialized from a stored template with
+ * memoized results.
+ *
+ * @param <K>
+ *            key type.
+ * @param <V>
+ *            value type.
+ */
+public final class MapOptions<K, V> {
+
+    private static final MapOptions<?, ?> DEFAULTS = new MapOptions<>(
+            MapState.HASH_MAP, -1, false, null, null, false, null, null,
+            false);
+
+    /*
+     * State handling is shared by every lineage, so lineages with the same
+     * settings intern into the same histories.
+     */
+    private static final UnaryOperator<MapKernel<Object, Object>> COPIER = MapKernel::copy;
+
+    private static final Supplier<MapKernel<Object, Object>> HASH_MAP_KERNEL = HashMapKernel::new;
+
+    private static final BiFunction<MapKernel<Object, Object>, MapDelta<Object, Object>, MapKernel<Object, Object>> MUTATOR = Helper::mutate;
+
+    private static final Supplier<MapKernel<Object, Object>> PERSISTENT_KERNEL = PersistentMapKernel::new;
+
+    /**
+     * Plain settings: hash map state that is folded from an empty map on
+     * every build.
+     *
+     * @return default options.
+     */
+    @SuppressWarnings("unchecked")
+    public static <KK, VV> MapOptions<KK, VV> defaults() {
+        return (MapOptions<KK, VV>) DEFAULTS;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <X> X shared(final Object handling) {
+        return (X) handling;
+    }
+
+    private final BuildCache cache;
+
+    /*
+     * checkpoint spacing, or -1 if the lineage does not copy state
+     */
+    private final int checkpointInterval;
+
+    private final boolean coalesce;
+
+    private final boolean indexed;
+
+    private final LineageInterner interner;
+
+    private final boolean memoize;
+
+    private final ForkJoinPool pool;
+
+    private final MapState state;
+
+    private final MapSnapshot<K, V> template;
+
+    private MapOptions(final MapState state, final int checkpointInterval,
+            final boolean coalesce, final MapSnapshot<K, V> template,
+            final ForkJoinPool pool, final boolean memoize,
+            final BuildCache cache, final LineageInterner interner,
+            final boolean indexed) {
+        this.state = state;
+        this.checkpointInterval = checkpointInterval;
+        this.coalesce = coalesce;
+        this.template = template;
+        this.pool = pool;
+        this.memoize = memoize;
+        this.cache = cache;
+        this.interner = interner;
+        this.indexed = indexed;
+    }
+
+    /**
+     * Cache results in a shared, bounded cache.
+     *
+     * @param cache
+     *            cache to use.
+     *
+     * @return options with cached results.
+     *
+     * @see ImmutableOptions#withCache(BuildCache)
+     */
+    public MapOptions<K, V> withCache(final BuildCache cache) {
+        return new MapOptions<>(this.state, this.checkpointInterval,
+                this.coalesce, this.template, this.pool, this.memoize,
+                Objects.requireNonNull(cache), this.interner, this.indexed);
+    }
+
+    /**
+     * Keep folded state every {@code interval} deltas so builds replay only
+     * the deltas applied after the nearest checkpoint. This also lets batch
+     * builds and variants fold shared history once. Persistent state keeps
+     * every version regardless.
+     *
+     * @param interval
+     *            checkpoint spacing. Zero keeps only checkpoints requested by
+     *            the builder.
+     *
+     * @return options with interval checkpoints.
+     *
+     * @see ImmutableOptions#withCheckpoints(UnaryOperator, int)
+     */
+    public MapOptions<K, V> withCheckpoints(final int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("negative checkpoint interval");
+        }
+        return new MapOptions<>(this.state, interval, this.coalesce,
+                this.template, this.pool, this.memoize, this.cache,
+                this.interner, this.indexed);
+    }
+
+    /**
+     * Merge a new delta into its predecessor when both are of the same kind,
+     * so chains of small changes keep a short history.
+     *
+     * @return options with coalescing enabled.
+     *
+     * @see ImmutableOptions#withCoalescing(BiFunction)
+     */
+    public MapOptions<K, V> withCoalescing() {
+        return new MapOptions<>(this.state, this.checkpointInterval, true,
+                this.template, this.pool, this.memoize, this.cache,
+                this.interner, this.indexed);
+    }
+
+    /**
+     * Index histories for constant time lineage keys and logarithmic time
+     * diffs.
+     *
+     * @return options with indexed histories.
+     *
+     * @see ImmutableOptions#withIndexedHistory()
+     */
+    public MapOptions<K, V> withIndexedHistory() {
+        return new MapOptions<>(this.state, this.checkpointInterval,
+                this.coalesce, this.template, this.pool, this.memoize,
+                this.cache, this.interner, true);
+    }
+
+    /**
+     * Collapse structurally identical histories into one instance.
+     *
+     * @param interner
+     *            table to intern histories in.
+     *
+     * @return options with interning enabled.
+     *
+     * @see ImmutableOptions#withInterning(LineageInterner)
+     */
+    public MapOptions<K, V> withInterning(final LineageInterner interner) {
+        return new MapOptions<>(this.state, this.checkpointInterval,
+                this.coalesce, this.template, this.pool, this.memoize,
+                this.cache, Objects.requireNonNull(interner), this.indexed);
+    }
+
+    /**
+     * Remember what each builder produces.
+     *
+     * @return options with memoized results.
+     *
+     * @see ImmutableOptions#withMemoizedResults()
+     */
+    public MapOptions<K, V> withMemoizedResults() {
+        return new MapOptions<>(this.state, this.checkpointInterval,
+                this.coalesce, this.template, this.pool, true, this.cache,
+                this.interner, this.indexed);
+    }
+
+    /**
+     * Reduce long histories in parallel. Adjacent deltas of the same kind are
+     * accumulated on the pool before they are applied to the state.
+     *
+     * @param pool
+     *            pool that runs the reduction.
+     *
+     * @return options with parallel folding enabled.
+     */
+    public MapOptions<K, V> withParallelFold(final ForkJoinPool pool) {
+        return new MapOptions<>(this.state, this.checkpointInterval,
+                this.coalesce, this.template, Objects.requireNonNull(pool),
+                this.memoize, this.cache, this.interner, this.indexed);
+    }
+
+    /**
+     * Keep state using the specified model.
+     *
+     * @param state
+     *            state model.
+     *
+     * @return options with the state model.
+     */
+    public MapOptions<K, V> withState(final MapState state) {
+        return new MapOptions<>(Objects.requireNonNull(state),
+                this.checkpointInterval, this.coalesce, this.template,
+                this.pool, this.memoize, this.cache, this.interner,
+                this.indexed);
+    }
+
+    /**
+     * Start from a stored template rather than an empty map. The template is
+     * decoded when a builder of the lineage is first built.
+     *
+     * @param template
+     *            initial state, from a {@link TemplateStore}.
+     *
+     * @return options with the initial state.
+     */
+    public MapOptions<K, V> withTemplate(final MapSnapshot<K, V> template) {
+        return new MapOptions<>(this.state, this.checkpointInterval,
+                this.coalesce, Objects.requireNonNull(template), this.pool,
+                this.memoize, this.cache, this.interner, this.indexed);
+    }
+
+    /*
+     * creates the initial state of the lineage
+     */
+    Supplier<MapKernel<K, V>> initializer() {
+        if (this.template != null) {
+            return this.template.initializer(this.state);
+        }
+        return shared(this.state == MapState.PERSISTENT ? PERSISTENT_KERNEL
+                : HASH_MAP_KERNEL);
+    }
+
+    /*
+     * Lineage options as configured. Persistent state, whose copies are
+     * cheap, keeps a version at every delta.
+     */
+    ImmutableOptions<MapKernel<K, V>, MapDelta<K, V>> lineageOptions() {
+        ImmutableOptions<MapKernel<K, V>, MapDelta<K, V>> rval = ImmutableOptions
+                .<MapKernel<K, V>, MapDelta<K, V>> defaults();
+        if (this.state == MapState.PERSISTENT) {
+            rval = rval.withCheckpoints(shared(COPIER), 1);
+        } else if (this.checkpointInterval >= 0) {
+            rval = rval.withCheckpoints(shared(COPIER),
+                    this.checkpointInterval);
+        }
+        if (this.coalesce) {
+            rval = rval.withCoalescing(Helper::coalesce);
+        }
+        if (this.pool != null) {
+            rval = rval.withParallelFold(this.pool, MapAccumulator::new);
+        }
+        if (this.memoize) {
+            rval = rval.withMemoizedResults();
+        }
+        if (this.cache != null) {
+            rval = rval.withCache(this.cache);
+        }
+        if (this.interner != null) {
+            rval = rval.withInterning(this.interner);
+        }
+        if (this.indexed) {
+            rval = rval.withIndexedHistory();
+        }
+        return rval;
+    }
+
+    /*
+     * applies deltas to the state
+     */
+    BiFunction<MapKernel<K, V>, MapDelta<K, V>, MapKernel<K, V>> mutator() {
+        return shared(MUTATOR);
+    }
+
+}
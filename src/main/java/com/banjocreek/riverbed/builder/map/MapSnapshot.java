@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.banjocreek.riverbed.builder.codec.ValueCodec;
+
+/**
+ * <p>
+ * Folded state of a map builder template, read from a {@link TemplateStore}.
+ * The state is decoded from the store on first use and then kept, so
+ * templates that are never built cost only their index entry. Each state
+ * model's kernel is likewise built once, and lineages rooted here start from
+ * a copy of it.
+ * </p>
+ * <p>
+ * Instances are thread safe.
+ * </p>
+ *
+ * @param <K>
+ *            key type.
+ * @param <V>
+ *            value type.
+ */
+public final class MapSnapshot<K, V> {
+
+    /*
+     * Encode the folded state of a builder. Entries must be plain values.
+     */
+    static <K, V> void encode(final MapContents<K, V> contents,
+            final DataOutput out, final ValueCodec<K> keys,
+            final ValueCodec<V> values) throws IOException {
+        final HashMap<K, V> set = new HashMap<>();
+        for (final Map.Entry<K, Function<? super V, ? extends V>> e : contents.entries
+                .entrySet()) {
+            if (!(e.getValue() instanceof Constant)) {
+                throw new IOException(
+                        "only values and defaults can be kept in a snapshot");
+            }
+            set.put(e.getKey(), value(e.getValue()));
+        }
+        writeEntries(contents.defaults, out, keys, values);
+        writeEntries(set, out, keys, values);
+        out.writeInt(contents.removed.size());
+        for (final K key : contents.removed) {
+            keys.write(key, out);
+        }
+    }
+
+    private static <K, V> HashMap<K, V> readEntries(final DataInput in,
+            final ValueCodec<K> keys, final ValueCodec<V> values)
+            throws IOException {
+        final int size = in.readInt();
+        final HashMap<K, V> rval = new HashMap<>();
+        for (int i = 0; i < size; ++i) {
+            final K key = keys.read(in);
+            rval.put(key, in.readBoolean() ? values.read(in) : null);
+        }
+        return rval;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V value(final Function<? super V, ? extends V> entry) {
+        return ((Constant<? extends V>) entry).value;
+    }
+
+    private static <K, V> void writeEntries(final Map<K, V> entries,
+            final DataOutput out, final ValueCodec<K> keys,
+            final ValueCodec<V> values) throws IOException {
+        out.writeInt(entries.size());
+        for (final Map.Entry<K, V> e : entries.entrySet()) {
+            keys.write(e.getKey(), out);
+            out.writeBoolean(e.getValue() != null);
+            if (e.getValue() != null) {
+                values.write(e.getValue(), out);
+            }
+        }
+    }
+
+    /*
+     * encoded state; read only, never repositioned
+     */
+    private final ByteBuffer block;
+
+    private volatile MapContents<K, V> decoded;
+
+    /*
+     * kernels holding the snapshot state, built on first use; never changed
+     * once built, only copied
+     */
+    private volatile MapKernel<K, V> hashMapKernel;
+
+    private volatile MapKernel<K, V> persistentKernel;
+
+    /*
+     * initializers of lineages rooted here, one per state model
+     */
+    private final Supplier<MapKernel<K, V>> hashMapInitializer = () ->
+            kernel(MapState.HASH_MAP).copy();
+
+    private final ValueCodec<K> keys;
+
+    private final Supplier<MapKernel<K, V>> persistentInitializer = () ->
+            kernel(MapState.PERSISTENT).copy();
+
+    private final ValueCodec<V> values;
+
+    MapSnapshot(final ByteBuffer block, final ValueCodec<K> keys,
+            final ValueCodec<V> values) {
+        this.block = block;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /*
+     * Initializer of lineages with the given state model. Every lineage
+     * rooted at this snapshot with the same model shares it.
+     */
+    Supplier<MapKernel<K, V>> initializer(final MapState model) {
+        return model == MapState.PERSISTENT ? this.persistentInitializer
+                : this.hashMapInitializer;
+    }
+
+    /*
+     * Shared kernel of the given model holding the snapshot state. Callers
+     * must copy it before applying changes.
+     */
+    MapKernel<K, V> kernel(final MapState model) {
+        final boolean persistent = model == MapState.PERSISTENT;
+        MapKernel<K, V> rval = persistent ? this.persistentKernel
+                : this.hashMapKernel;
+        if (rval == null) {
+            synchronized (this) {
+                rval = persistent ? this.persistentKernel : this.hashMapKernel;
+                if (rval == null) {
+                    rval = build(model);
+                    if (persistent) {
+                        this.persistentKernel = rval;
+                    } else {
+                        this.hashMapKernel = rval;
+                    }
+                }
+            }
+        }
+        return rval;
+    }
+
+    private MapKernel<K, V> build(final MapState model) {
+        final MapContents<K, V> contents = decode();
+        final MapKernel<K, V> rval = model == MapState.PERSISTENT
+                ? new PersistentMapKernel<>() : new HashMapKernel<>();
+        rval.defaults(contents.defaults);
+        rval.remove(contents.removed);
+        rval.updates(contents.entries);
+        return rval;
+    }
+
+    private MapContents<K, V> decode() {
+        MapContents<K, V> rval = this.decoded;
+        if (rval == null) {
+            synchronized (this) {
+                rval = this.decoded;
+                if (rval == null) {
+                    rval = read();
+                    this.decoded = rval;
+                }
+            }
+        }
+        return rval;
+    }
+
+    private MapContents<K, V> read() {
+        final DataInputStream in = new DataInputStream(new BufferInput(
+                this.block.duplicate()));
+        try {
+            final MapContents<K, V> rval = new MapContents<>();
+            rval.defaults.putAll(readEntries(in, this.keys, this.values));
+            readEntries(in, this.keys, this.values).forEach(
+                    (k, v) -> rval.entries.put(k, new Constant<>(v)));
+            final int removed = in.readInt();
+            for (int i = 0; i < removed; ++i) {
+                rval.removed.add(this.keys.read(in));
+            }
+            return rval;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Input stream over a byte buffer.
+     */
+    private static final class BufferInput extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInput(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, n);
+            return n;
+        }
+
+    }
+
+}
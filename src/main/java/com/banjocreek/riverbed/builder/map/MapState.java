@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+/**
+ * State models available to immutable map builders.
+ */
+public enum MapState {
+
+    /**
+     * Fold the lineage into fresh hash maps on every build.
+     */
+    HASH_MAP,
+
+    /**
+     * Keep a structurally shared version of the state for every builder in
+     * the lineage. A build costs about as much as materializing the result
+     * map, independent of history length. Versions are captured lazily, the
+     * first time a builder or one of its descendants is built.
+     */
+    PERSISTENT;
+
+}
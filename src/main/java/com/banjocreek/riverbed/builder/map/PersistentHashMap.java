@@ -0,0 +1,328 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Persistent hash array mapped trie. Every update returns a new map that
+ * shares all untouched nodes with its source, so versions are cheap to keep.
+ * Keys must not be null; values may be.
+ *
+ * @param <K>
+ *            key type.
+ * @param <V>
+ *            value type.
+ */
+final class PersistentHashMap<K, V> {
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(
+            null, 0);
+
+    private static final Object NOT_FOUND = new Object();
+
+    @SuppressWarnings("unchecked")
+    static <KK, VV> PersistentHashMap<KK, VV> empty() {
+        return (PersistentHashMap<KK, VV>) EMPTY;
+    }
+
+    private static int bit(final int hash, final int shift) {
+        return 1 << (hash >>> shift & 31);
+    }
+
+    private static Node split(final int shift, final Object k1,
+            final Object v1, final int h2, final Object k2, final Object v2) {
+        final int h1 = hash(k1);
+        if (h1 == h2) {
+            return new CollisionNode(h1, new Object[] { k1, v1, k2, v2 });
+        }
+        final boolean[] ignored = new boolean[1];
+        return BitmapNode.EMPTY.assoc(shift, h1, k1, v1, ignored).assoc(shift,
+                h2, k2, v2, ignored);
+    }
+
+    private static int hash(final Object key) {
+        final int h = key.hashCode();
+        return h ^ h >>> 16;
+    }
+
+    private final Node root;
+
+    private final int size;
+
+    private PersistentHashMap(final Node root, final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    boolean containsKey(final Object key) {
+        return this.root != null
+                && this.root.find(0, hash(key), key) != NOT_FOUND;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(final BiConsumer<? super K, ? super V> action) {
+        if (this.root != null) {
+            this.root.forEach((BiConsumer<Object, Object>) action);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final Object key) {
+        if (this.root == null) {
+            return null;
+        }
+        final Object v = this.root.find(0, hash(key), key);
+        return v == NOT_FOUND ? null : (V) v;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    PersistentHashMap<K, V> put(final K key, final V value) {
+        final boolean[] added = new boolean[1];
+        final Node r = (this.root == null ? BitmapNode.EMPTY : this.root)
+                .assoc(0, hash(key), key, value, added);
+        return r == this.root ? this : new PersistentHashMap<>(r, added[0]
+                ? this.size + 1 : this.size);
+    }
+
+    PersistentHashMap<K, V> remove(final Object key) {
+        if (this.root == null) {
+            return this;
+        }
+        final Node r = this.root.without(0, hash(key), key);
+        return r == this.root ? this : r == null ? empty()
+                : new PersistentHashMap<>(r, this.size - 1);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    private static final class BitmapNode implements Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        /*
+         * pairs of key and value. A null key marks a pair whose value is a
+         * sub-node.
+         */
+        private final Object[] array;
+
+        private final int bitmap;
+
+        BitmapNode(final int bitmap, final Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        public Node assoc(final int shift, final int hash, final Object key,
+                final Object value, final boolean[] added) {
+            final int bit = bit(hash, shift);
+            final int idx = index(bit);
+            if ((this.bitmap & bit) == 0) {
+                added[0] = true;
+                final Object[] na = new Object[this.array.length + 2];
+                System.arraycopy(this.array, 0, na, 0, 2 * idx);
+                na[2 * idx] = key;
+                na[2 * idx + 1] = value;
+                System.arraycopy(this.array, 2 * idx, na, 2 * (idx + 1),
+                        this.array.length - 2 * idx);
+                return new BitmapNode(this.bitmap | bit, na);
+            }
+            final Object k = this.array[2 * idx];
+            final Object v = this.array[2 * idx + 1];
+            if (k == null) {
+                final Node n = ((Node) v).assoc(shift + 5, hash, key, value,
+                        added);
+                return n == v ? this : with(2 * idx, null, n);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : with(2 * idx, k, value);
+            }
+            added[0] = true;
+            return with(2 * idx, null,
+                    split(shift + 5, k, v, hash, key, value));
+        }
+
+        @Override
+        public Object find(final int shift, final int hash, final Object key) {
+            final int bit = bit(hash, shift);
+            if ((this.bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            final int idx = index(bit);
+            final Object k = this.array[2 * idx];
+            final Object v = this.array[2 * idx + 1];
+            if (k == null) {
+                return ((Node) v).find(shift + 5, hash, key);
+            }
+            return key.equals(k) ? v : NOT_FOUND;
+        }
+
+        @Override
+        public void forEach(final BiConsumer<Object, Object> action) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                if (this.array[i] == null) {
+                    ((Node) this.array[i + 1]).forEach(action);
+                } else {
+                    action.accept(this.array[i], this.array[i + 1]);
+                }
+            }
+        }
+
+        @Override
+        public Node without(final int shift, final int hash, final Object key) {
+            final int bit = bit(hash, shift);
+            if ((this.bitmap & bit) == 0) {
+                return this;
+            }
+            final int idx = index(bit);
+            final Object k = this.array[2 * idx];
+            final Object v = this.array[2 * idx + 1];
+            if (k == null) {
+                final Node n = ((Node) v).without(shift + 5, hash, key);
+                if (n == v) {
+                    return this;
+                }
+                return n != null ? with(2 * idx, null, n) : removePair(bit,
+                        idx);
+            }
+            return key.equals(k) ? removePair(bit, idx) : this;
+        }
+
+        private int index(final int bit) {
+            return Integer.bitCount(this.bitmap & bit - 1);
+        }
+
+        private Node removePair(final int bit, final int idx) {
+            if (this.bitmap == bit) {
+                return null;
+            }
+            final Object[] na = new Object[this.array.length - 2];
+            System.arraycopy(this.array, 0, na, 0, 2 * idx);
+            System.arraycopy(this.array, 2 * (idx + 1), na, 2 * idx,
+                    na.length - 2 * idx);
+            return new BitmapNode(this.bitmap ^ bit, na);
+        }
+
+        private BitmapNode with(final int at, final Object key,
+                final Object value) {
+            final Object[] na = this.array.clone();
+            na[at] = key;
+            na[at + 1] = value;
+            return new BitmapNode(this.bitmap, na);
+        }
+
+    }
+
+    private static final class CollisionNode implements Node {
+
+        private final int hash;
+
+        private final Object[] array;
+
+        CollisionNode(final int hash, final Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        public Node assoc(final int shift, final int hash, final Object key,
+                final Object value, final boolean[] added) {
+            if (hash != this.hash) {
+                return new BitmapNode(bit(this.hash, shift), new Object[] {
+                        null, this }).assoc(shift, hash, key, value, added);
+            }
+            final int at = indexOf(key);
+            if (at >= 0) {
+                if (this.array[at + 1] == value) {
+                    return this;
+                }
+                final Object[] na = this.array.clone();
+                na[at + 1] = value;
+                return new CollisionNode(hash, na);
+            }
+            added[0] = true;
+            final Object[] na = Arrays.copyOf(this.array,
+                    this.array.length + 2);
+            na[this.array.length] = key;
+            na[this.array.length + 1] = value;
+            return new CollisionNode(hash, na);
+        }
+
+        @Override
+        public Object find(final int shift, final int hash, final Object key) {
+            final int at = indexOf(key);
+            return at < 0 ? NOT_FOUND : this.array[at + 1];
+        }
+
+        @Override
+        public void forEach(final BiConsumer<Object, Object> action) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                action.accept(this.array[i], this.array[i + 1]);
+            }
+        }
+
+        @Override
+        public Node without(final int shift, final int hash, final Object key) {
+            final int at = indexOf(key);
+            if (at < 0) {
+                return this;
+            }
+            if (this.array.length == 2) {
+                return null;
+            }
+            final Object[] na = new Object[this.array.length - 2];
+            System.arraycopy(this.array, 0, na, 0, at);
+            System.arraycopy(this.array, at + 2, na, at, na.length - at);
+            return new CollisionNode(hash, na);
+        }
+
+        private int indexOf(final Object key) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                if (key.equals(this.array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+    }
+
+    private interface Node {
+
+        Node assoc(int shift, int hash, Object key, Object value,
+                boolean[] added);
+
+        Object find(int shift, int hash, Object key);
+
+        void forEach(BiConsumer<Object, Object> action);
+
+        /*
+         * null when the node becomes empty
+         */
+        Node without(int shift, int hash, Object key);
+
+    }
+
+}
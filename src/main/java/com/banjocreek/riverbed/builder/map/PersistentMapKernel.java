@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Map kernel whose accumulators are persistent tries. Copies are constant
+ * time and share structure with their source, so every version of a lineage
+ * can be kept cheaply.
+ */
+final class PersistentMapKernel<K, V> implements MapKernel<K, V> {
+
+    /**
+     * Defaults accumulator.
+     */
+    private PersistentHashMap<K, V> defaults;
+
+    /**
+     * Entry accumulator.
+     */
+    private PersistentHashMap<K, Function<? super V, ? extends V>> entries;
+
+    /**
+     * All removed keys, i.e. all keys to remove from defaults.
+     */
+    private PersistentHashMap<K, Boolean> removed;
+
+    PersistentMapKernel() {
+        this(PersistentHashMap.empty(), PersistentHashMap.empty(),
+                PersistentHashMap.empty());
+    }
+
+    private PersistentMapKernel(final PersistentHashMap<K, V> defaults,
+            final PersistentHashMap<K, Function<? super V, ? extends V>> entries,
+            final PersistentHashMap<K, Boolean> removed) {
+        this.defaults = defaults;
+        this.entries = entries;
+        this.removed = removed;
+    }
+
+    @Override
+    public void clear() {
+        this.defaults = PersistentHashMap.empty();
+        this.entries = PersistentHashMap.empty();
+        this.removed = PersistentHashMap.empty();
+    }
+
+    @Override
+    public PersistentMapKernel<K, V> copy() {
+        return new PersistentMapKernel<>(this.defaults, this.entries,
+                this.removed);
+    }
+
+    @Override
+    public void defaults(final Map<K, V> additional) {
+        additional.forEach((k, v) -> {
+            this.defaults = this.defaults.put(k, v);
+        });
+    }
+
+    @Override
+    public void exportTo(final MapContents<K, V> contents) {
+        this.defaults.forEach(contents.defaults::put);
+        this.entries.forEach(contents.entries::put);
+        this.removed.forEach((k, r) -> contents.removed.add(k));
+    }
+
+    @Override
+    public Map<K, V> merge() {
+
+        final HashMap<K, V> rval = new HashMap<>();
+
+        this.defaults.forEach((k, v) -> {
+            if (!this.removed.containsKey(k)) {
+                rval.put(k, v);
+            }
+        });
+
+        this.entries.forEach((k, fv) -> {
+            rval.put(k, fv.apply(rval.get(k)));
+        });
+
+        return rval;
+    }
+
+    @Override
+    public void remove(final Collection<K> toRemove) {
+        toRemove.forEach(k -> {
+            this.entries = this.entries.remove(k);
+            this.removed = this.removed.put(k, Boolean.TRUE);
+        });
+    }
+
+    @Override
+    public void reset(final Collection<K> toReset) {
+        toReset.forEach(k -> {
+            this.entries = this.entries.remove(k);
+            this.removed = this.removed.remove(k);
+        });
+    }
+
+    @Override
+    public void resetAll() {
+        this.entries = PersistentHashMap.empty();
+        this.removed = PersistentHashMap.empty();
+    }
+
+    @Override
+    public void updates(
+            final Map<K, Function<? super V, ? extends V>> additional) {
+
+        additional.forEach(this::addEntry);
+
+    }
+
+    @Override
+    public void values(final Map<K, V> additional) {
+
+        /*
+         * a value replaces whatever was accumulated for its key
+         */
+        additional.forEach((k, v) -> {
+            this.entries = this.entries.put(k, new Constant<>(v));
+        });
+
+    }
+
+    private void addEntry(final K k,
+            final Function<? super V, ? extends V> mutate) {
+
+        final Function<? super V, ? extends V> existing = this.entries.get(k);
+        this.entries = this.entries.put(k,
+                existing == null ? mutate : existing.andThen(mutate));
+
+    }
+
+}
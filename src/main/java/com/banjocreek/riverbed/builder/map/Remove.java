@@ -21,6 +21,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 
 final class Remove<K, V> implements MapDelta<K, V> {
@@ -37,9 +38,44 @@ final class Remove<K, V> implements MapDelta<K, V> {
         this.keys = Collections.singleton(Objects.requireNonNull(key));
     }
 
+    /**
+     * Combine with a subsequent delta of the same kind.
+     *
+     * @param next
+     *            delta applied after this one.
+     *
+     * @return combined delta or empty if the result would be too large.
+     */
+    Optional<MapDelta<K, V>> combine(final Remove<K, V> next) {
+        if (this.keys.size() + next.keys.size() > Helper.COALESCE_LIMIT) {
+            return Optional.empty();
+        }
+        final HashSet<K> merged = new HashSet<>(this.keys);
+        merged.addAll(next.keys);
+        return Optional.of(new Remove<>(merged));
+    }
+
     @Override
     public void applyTo(final MapKernel<K, V> kernel) {
         kernel.remove(this.keys);
     }
 
+    /*
+     * keys carried by this delta, for encoding
+     */
+    Set<K> keys() {
+        return Collections.unmodifiableSet(this.keys);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof Remove
+                && this.keys.equals(((Remove<?, ?>) obj).keys);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.keys.hashCode() + 3;
+    }
+
 }
@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Kernel that spreads keys over independently locked {@link HashMapKernel
+ * stripes}. Keyed operations lock only the stripes they touch, so
+ * contributors working on different keys rarely contend. Operations on every
+ * key, {@link #clear()} and {@link #resetAll()}, lock all stripes and so act
+ * as barriers. Every operation is atomic with respect to {@link #merge()}.
+ * </p>
+ * <p>
+ * Each key lives in exactly one stripe, so merging the stripes and combining
+ * the results yields the same map as a single kernel would.
+ * </p>
+ */
+final class StripedMapKernel<K, V> implements MapKernel<K, V> {
+
+    private final ReentrantLock[] locks;
+
+    private final HashMapKernel<K, V>[] stripes;
+
+    /**
+     * Create an empty kernel.
+     *
+     * @param stripes
+     *            requested number of stripes, rounded up to a power of two.
+     */
+    StripedMapKernel(final int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("need at least one stripe");
+        }
+        final int n = stripes == 1 ? 1 : Integer
+                .highestOneBit(stripes - 1) << 1;
+        this.locks = new ReentrantLock[n];
+        this.stripes = newStripes(n);
+        for (int i = 0; i < n; ++i) {
+            this.locks[i] = new ReentrantLock();
+            this.stripes[i] = new HashMapKernel<>();
+        }
+    }
+
+    private StripedMapKernel(final HashMapKernel<K, V>[] stripes) {
+        this.locks = new ReentrantLock[stripes.length];
+        this.stripes = stripes;
+        for (int i = 0; i < stripes.length; ++i) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <K, V> HashMapKernel<K, V>[] newStripes(final int n) {
+        return new HashMapKernel[n];
+    }
+
+    @Override
+    public void clear() {
+        all(HashMapKernel::clear);
+    }
+
+    @Override
+    public StripedMapKernel<K, V> copy() {
+        final HashMapKernel<K, V>[] copies = newStripes(this.stripes.length);
+        lockAll();
+        try {
+            for (int i = 0; i < copies.length; ++i) {
+                copies[i] = this.stripes[i].copy();
+            }
+        } finally {
+            unlockAll();
+        }
+        return new StripedMapKernel<>(copies);
+    }
+
+    @Override
+    public void defaults(final Map<K, V> additional) {
+        byEntries(additional, HashMapKernel::defaults);
+    }
+
+    @Override
+    public void exportTo(final MapContents<K, V> contents) {
+        all(stripe -> stripe.exportTo(contents));
+    }
+
+    @Override
+    public Map<K, V> merge() {
+        final HashMap<K, V> rval = new HashMap<>();
+        lockAll();
+        try {
+            for (final HashMapKernel<K, V> stripe : this.stripes) {
+                rval.putAll(stripe.merge());
+            }
+        } finally {
+            unlockAll();
+        }
+        return rval;
+    }
+
+    @Override
+    public void remove(final Collection<K> toRemove) {
+        byKeys(toRemove, HashMapKernel::remove);
+    }
+
+    @Override
+    public void reset(final Collection<K> toReset) {
+        byKeys(toReset, HashMapKernel::reset);
+    }
+
+    @Override
+    public void resetAll() {
+        all(HashMapKernel::resetAll);
+    }
+
+    /**
+     * Number of stripes.
+     *
+     * @return stripe count, a power of two.
+     */
+    int stripes() {
+        return this.stripes.length;
+    }
+
+    @Override
+    public void updates(
+            final Map<K, Function<? super V, ? extends V>> additional) {
+        byEntries(additional, HashMapKernel::updates);
+    }
+
+    @Override
+    public void values(final Map<K, V> additional) {
+        byEntries(additional, HashMapKernel::values);
+    }
+
+    private void all(final Consumer<HashMapKernel<K, V>> op) {
+        lockAll();
+        try {
+            for (final HashMapKernel<K, V> stripe : this.stripes) {
+                op.accept(stripe);
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /*
+     * Apply op to each stripe with its share of the entries. Stripes are
+     * locked in ascending order so that concurrent multi-stripe operations
+     * cannot deadlock.
+     */
+    private <X> void byEntries(final Map<K, X> entries,
+            final BiConsumer<HashMapKernel<K, V>, Map<K, X>> op) {
+        if (entries.size() == 1) {
+            final K key = entries.keySet().iterator().next();
+            final int i = stripe(key);
+            this.locks[i].lock();
+            try {
+                op.accept(this.stripes[i], entries);
+            } finally {
+                this.locks[i].unlock();
+            }
+            return;
+        }
+        final ArrayList<HashMap<K, X>> parts = new ArrayList<>(
+                this.stripes.length);
+        for (int i = 0; i < this.stripes.length; ++i) {
+            parts.add(null);
+        }
+        entries.forEach((k, x) -> {
+            final int i = stripe(k);
+            HashMap<K, X> part = parts.get(i);
+            if (part == null) {
+                part = new HashMap<>();
+                parts.set(i, part);
+            }
+            part.put(k, x);
+        });
+        lockEach(parts);
+        try {
+            for (int i = 0; i < this.stripes.length; ++i) {
+                if (parts.get(i) != null) {
+                    op.accept(this.stripes[i], parts.get(i));
+                }
+            }
+        } finally {
+            unlockEach(parts);
+        }
+    }
+
+    private void byKeys(final Collection<K> keys,
+            final BiConsumer<HashMapKernel<K, V>, Collection<K>> op) {
+        final ArrayList<ArrayList<K>> parts = new ArrayList<>(
+                this.stripes.length);
+        for (int i = 0; i < this.stripes.length; ++i) {
+            parts.add(null);
+        }
+        for (final K k : keys) {
+            final int i = stripe(k);
+            ArrayList<K> part = parts.get(i);
+            if (part == null) {
+                part = new ArrayList<>();
+                parts.set(i, part);
+            }
+            part.add(k);
+        }
+        lockEach(parts);
+        try {
+            for (int i = 0; i < this.stripes.length; ++i) {
+                if (parts.get(i) != null) {
+                    op.accept(this.stripes[i], parts.get(i));
+                }
+            }
+        } finally {
+            unlockEach(parts);
+        }
+    }
+
+    private void lockAll() {
+        for (final ReentrantLock lock : this.locks) {
+            lock.lock();
+        }
+    }
+
+    /*
+     * lock the stripes that have a part, in ascending order
+     */
+    private void lockEach(final ArrayList<?> parts) {
+        for (int i = 0; i < this.locks.length; ++i) {
+            if (parts.get(i) != null) {
+                this.locks[i].lock();
+            }
+        }
+    }
+
+    private int stripe(final K key) {
+        final int h = Objects.hashCode(key);
+        return (h ^ h >>> 16) & this.stripes.length - 1;
+    }
+
+    private void unlockAll() {
+        for (int i = this.locks.length - 1; i >= 0; --i) {
+            this.locks[i].unlock();
+        }
+    }
+
+    private void unlockEach(final ArrayList<?> parts) {
+        for (int i = this.locks.length - 1; i >= 0; --i) {
+            if (parts.get(i) != null) {
+                this.locks[i].unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.banjocreek.riverbed.builder.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import com.banjocreek.riverbed.builder.codec.ValueCodec;
+
+/**
+ * <p>
+ * Read-only file of named map builder templates, stored as folded state
+ * rather than history. Opening a store maps the file into memory and reads
+ * only its index; each template is decoded the first time a builder created
+ * from it is built. Create builders from a template with
+ * {@link MapOptions#withTemplate(MapSnapshot)}.
+ * </p>
+ * <p>
+ * A template is stored with everything it folds to, including any template
+ * it was itself created from. Only state made of values, defaults and
+ * removals can be stored; an update not replaced by a later value carries a
+ * function.
+ * </p>
+ *
+ * @param <K>
+ *            key type.
+ * @param <V>
+ *            value type.
+ */
+public final class TemplateStore<K, V> {
+
+    private static final int FORMAT = 1;
+
+    private static final int HEADER = 8;
+
+    private static final int MAGIC = 0x52425453;
+
+    /*
+     * largest region mapped at once
+     */
+    private static final long SEGMENT = Integer.MAX_VALUE;
+
+    /**
+     * Open a store.
+     *
+     * @param file
+     *            store file.
+     * @param keys
+     *            key codec used when the store was written.
+     * @param values
+     *            value codec used when the store was written.
+     *
+     * @return store of the templates in the file.
+     *
+     * @throws IOException
+     *             if the file cannot be read or is not a template store.
+     */
+    public static <K, V> TemplateStore<K, V> open(final Path file,
+            final ValueCodec<K> keys, final ValueCodec<V> values)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final ByteBuffer header = read(channel, 0, HEADER);
+            if (size < HEADER + 8 || header.getInt() != MAGIC) {
+                throw new IOException("not a template store: " + file);
+            }
+            final int format = header.getInt();
+            if (format != FORMAT) {
+                throw new IOException("unsupported template store format "
+                        + format);
+            }
+            final long indexStart = read(channel, size - 8, 8).getLong();
+            final DataInputStream index = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel
+                            .position(indexStart))));
+            final int count = index.readInt();
+            final List<String> names = new ArrayList<>(count);
+            final long[] offsets = new long[count];
+            final int[] lengths = new int[count];
+            for (int i = 0; i < count; ++i) {
+                names.add(ValueCodec.STRING.read(index));
+                offsets[i] = index.readLong();
+                lengths[i] = index.readInt();
+            }
+
+            /*
+             * map consecutive templates together, in regions no larger than
+             * a buffer can address
+             */
+            final HashMap<String, MapSnapshot<K, V>> templates = new HashMap<>();
+            ByteBuffer region = null;
+            long regionStart = 0;
+            for (int i = 0; i < count; ++i) {
+                final long end = offsets[i] + lengths[i];
+                if (region == null || end - regionStart > region.capacity()) {
+                    regionStart = offsets[i];
+                    region = channel.map(MapMode.READ_ONLY, regionStart, Math
+                            .min(SEGMENT, indexStart - regionStart));
+                }
+                final ByteBuffer block = region.duplicate();
+                block.position((int) (offsets[i] - regionStart));
+                block.limit(block.position() + lengths[i]);
+                templates.put(names.get(i), new MapSnapshot<>(block.slice()
+                        .asReadOnlyBuffer(), keys, values));
+            }
+            return new TemplateStore<>(templates);
+        }
+    }
+
+    /**
+     * Write templates to a store, replacing the file if it exists.
+     *
+     * @param file
+     *            store file.
+     * @param templates
+     *            templates by name.
+     * @param keys
+     *            key codec.
+     * @param values
+     *            value codec.
+     *
+     * @throws IOException
+     *             if a template holds updates or the file cannot be written.
+     */
+    public static <K, V> void write(final Path file,
+            final Map<String, ? extends AbstractImmutableMapBuilder<K, V, ?, ?>> templates,
+            final ValueCodec<K> keys, final ValueCodec<V> values)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            long offset = HEADER;
+            final List<String> names = new ArrayList<>(templates.size());
+            final long[] offsets = new long[templates.size()];
+            final int[] lengths = new int[templates.size()];
+            final ByteArrayOutputStream block = new ByteArrayOutputStream();
+            for (final Map.Entry<String, ? extends AbstractImmutableMapBuilder<K, V, ?, ?>> e : templates
+                    .entrySet()) {
+                block.reset();
+                MapSnapshot.encode(e.getValue().contents(), new DataOutputStream(
+                        block), keys, values);
+                offsets[names.size()] = offset;
+                lengths[names.size()] = block.size();
+                names.add(e.getKey());
+                block.writeTo(out);
+                offset += block.size();
+            }
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); ++i) {
+                ValueCodec.STRING.write(names.get(i), out);
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+            out.writeLong(offset);
+        }
+    }
+
+    private static ByteBuffer read(final FileChannel channel,
+            final long position, final int length) throws IOException {
+        final ByteBuffer rval = ByteBuffer.allocate(length);
+        while (rval.hasRemaining()) {
+            if (channel.read(rval, position + rval.position()) < 0) {
+                throw new IOException("truncated template store");
+            }
+        }
+        rval.flip();
+        return rval;
+    }
+
+    private final Map<String, MapSnapshot<K, V>> templates;
+
+    private TemplateStore(final Map<String, MapSnapshot<K, V>> templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * Names of the stored templates.
+     *
+     * @return template names.
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(this.templates.keySet());
+    }
+
+    /**
+     * Look up a template.
+     *
+     * @param name
+     *            template name.
+     *
+     * @return the template's state, or empty if there is no such template.
+     */
+    public Optional<MapSnapshot<K, V>> snapshot(final String name) {
+        return Optional.ofNullable(this.templates.get(name));
+    }
+
+}
@@ -40,4 +40,16 @@ public class Update<K, V> implements MapDelta<K, V> {
         kernel.updates(this.mutations);
 
     }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof Update
+                && this.mutations.equals(((Update<?, ?>) obj).mutations);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.mutations.hashCode() + 5;
+    }
+
 }
@@ -21,6 +21,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 
 final class Values<K, V> implements MapDelta<K, V> {
 
@@ -36,6 +37,23 @@ final class Values<K, V> implements MapDelta<K, V> {
         this.entries = temp;
     }
 
+    /**
+     * Combine with a subsequent delta of the same kind.
+     *
+     * @param next
+     *            delta applied after this one.
+     *
+     * @return combined delta or empty if the result would be too large.
+     */
+    Optional<MapDelta<K, V>> combine(final Values<K, V> next) {
+        if (this.entries.size() + next.entries.size() > Helper.COALESCE_LIMIT) {
+            return Optional.empty();
+        }
+        final HashMap<K, V> merged = new HashMap<>(this.entries);
+        merged.putAll(next.entries);
+        return Optional.of(new Values<>(merged));
+    }
+
     @Override
     public void applyTo(final MapKernel<K, V> kernel) {
 
@@ -43,4 +61,22 @@ final class Values<K, V> implements MapDelta<K, V> {
 
     }
 
+    /*
+     * entries carried by this delta, for encoding
+     */
+    Map<K, V> entries() {
+        return Collections.unmodifiableMap(this.entries);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof Values
+                && this.entries.equals(((Values<?, ?>) obj).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.entries.hashCode() + 1;
+    }
+
 }
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pgmr.com.banjocreek.riverbed.builder;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.banjocreek.riverbed.builder.AbstractImmutableBuilder;
+import com.banjocreek.riverbed.builder.BuildCache;
+import com.banjocreek.riverbed.builder.ImmutableOptions;
+
+public class BuildCacheTest {
+
+    private AtomicInteger count;
+
+    @Before
+    public void setup() {
+        this.count = new AtomicInteger();
+    }
+
+    @Test
+    public void testEviction() {
+
+        /*
+         * given a cache bounded to two results
+         */
+        final BuildCache cache = new BuildCache(2);
+        final TestBuilder b = new TestBuilder(cache, this.count);
+
+        /*
+         * when three builders are built
+         */
+        final TestBuilder b1 = b.append("a");
+        final TestBuilder b2 = b.append("b");
+        final TestBuilder b3 = b.append("c");
+        b1.build();
+        b2.build();
+        b3.build();
+
+        /*
+         * the least recently used result is evicted
+         */
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.stats().evictionCount());
+        b3.build();
+        b2.build();
+        assertEquals(2, cache.stats().hitCount());
+        b1.build();
+        assertEquals(4, cache.stats().missCount());
+
+    }
+
+    @Test
+    public void testHit() {
+
+        /*
+         * given a builder using a cache
+         */
+        final BuildCache cache = new BuildCache(100);
+        final TestBuilder b = new TestBuilder(cache, this.count).append("a")
+                .append("b");
+
+        /*
+         * when it is built repeatedly
+         */
+        final String built = b.build();
+        final String again = b.build();
+
+        /*
+         * the cached result is returned
+         */
+        assertSame(built, again);
+        assertEquals(2, this.count.get());
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(1, cache.stats().missCount());
+        assertEquals(0.5, cache.stats().hitRate(), 0.0);
+
+    }
+
+    @Test
+    public void testRootAndParentAreSeparate() {
+
+        /*
+         * given a builder using a cache
+         */
+        final BuildCache cache = new BuildCache(100);
+        final TestBuilder b = new TestBuilder(cache, this.count).append("a");
+
+        /*
+         * when both build and done are invoked
+         */
+        final String built = b.build();
+        final String done = b.done();
+
+        /*
+         * each produces its own result
+         */
+        assertEquals("Built: a", built);
+        assertEquals("a", done);
+        assertEquals(2, cache.size());
+
+    }
+
+    @Test
+    public void testSegmentsRespectBound() {
+
+        /*
+         * given a cache large enough to be split into segments
+         */
+        final BuildCache cache = new BuildCache(100);
+        final TestBuilder b = new TestBuilder(cache, this.count);
+
+        /*
+         * when many more builders are built concurrently
+         */
+        IntStream.range(0, 1000).parallel()
+                .forEach(i -> b.append(String.valueOf(i)).build());
+
+        /*
+         * it stays within the bound, evicting everything it does not hold
+         */
+        assertTrue(cache.size() <= 100);
+        assertEquals(1000, cache.stats().missCount());
+        assertEquals(1000 - cache.size(), cache.stats().evictionCount());
+
+    }
+
+    @Test
+    public void testWeight() {
+
+        /*
+         * given a cache bounded by result length
+         */
+        final BuildCache cache = new BuildCache(10, r -> r.toString()
+                .length());
+        final TestBuilder b = new TestBuilder(cache, this.count);
+
+        /*
+         * when results exceeding the bound are built
+         */
+        b.append("aaaa").done();
+        b.append("bbbb").done();
+        b.append("cccc").done();
+
+        /*
+         * older results are evicted to respect the bound
+         */
+        assertEquals(2, cache.size());
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+
+    }
+
+    static final class TestBuilder extends
+            AbstractImmutableBuilder<StringBuilder, String, String, String> {
+
+        TestBuilder(final BuildCache cache, final AtomicInteger count) {
+            super(StringBuilder::new, (sb, s) -> {
+                count.incrementAndGet();
+                return sb.append(s);
+            }, ImmutableOptions.<StringBuilder, String> defaults().withCache(
+                    cache), sb -> "Built: " + sb, String::valueOf);
+        }
+
+        private TestBuilder(final TestBuilder prev, final String delta) {
+            super(prev, delta);
+        }
+
+        TestBuilder append(final String s) {
+            return new TestBuilder(this, s);
+        }
+
+    }
+
+}
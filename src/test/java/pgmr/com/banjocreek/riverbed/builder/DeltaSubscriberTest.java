@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pgmr.com.banjocreek.riverbed.builder;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import com.banjocreek.riverbed.builder.AbstractMutableBuilder;
+import com.banjocreek.riverbed.builder.DeltaSubscriber;
+import com.banjocreek.riverbed.builder.Flow;
+import com.banjocreek.riverbed.builder.MutableOptions;
+
+public class DeltaSubscriberTest {
+
+    private static final List<Long> TEN = Arrays.asList(0L, 1L, 2L, 3L, 4L,
+            5L, 6L, 7L, 8L, 9L);
+
+    @Test
+    public void testBatches() throws Exception {
+
+        /*
+         * given a publisher of ten deltas and a builder
+         */
+        final LBuilder b = new LBuilder();
+        final List<Long> versions = new ArrayList<>();
+        final ListPublisher upstream = new ListPublisher(TEN, null,
+                () -> versions.add(b.version()));
+        final List<List<Long>> merged = new ArrayList<>();
+
+        /*
+         * when they are fed in batches of four, merging every two batches
+         */
+        final DeltaSubscriber<Long> s = DeltaSubscriber.of(b, 4, 2,
+                merged::add);
+        upstream.subscribe(s);
+        s.done().get();
+
+        /*
+         * the deltas are requested and applied a batch at a time and merged
+         * on the trigger and at completion
+         */
+        assertEquals(Arrays.asList(4L, 4L, 4L), upstream.requests);
+        assertEquals(Arrays.asList(0L, 4L, 8L), versions);
+        assertEquals(Arrays.asList(TEN.subList(0, 8), TEN), merged);
+
+    }
+
+    @Test
+    public void testError() throws Exception {
+
+        /*
+         * given a publisher that fails after three deltas
+         */
+        final IllegalStateException failure = new IllegalStateException();
+        final ListPublisher upstream = new ListPublisher(TEN.subList(0, 3),
+                failure, () -> {
+                });
+        final LBuilder b = new LBuilder();
+
+        /*
+         * when it feeds a builder
+         */
+        final DeltaSubscriber<Long> s = DeltaSubscriber.of(b, 4);
+        upstream.subscribe(s);
+
+        /*
+         * the deltas received are applied and the subscriber fails
+         */
+        try {
+            s.done().get();
+            fail();
+        } catch (final ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(TEN.subList(0, 3), b.merge());
+
+    }
+
+    @Test
+    public void testFlush() {
+
+        /*
+         * given a subscriber with a partial batch
+         */
+        final LBuilder b = new LBuilder();
+        final DeltaSubscriber<Long> s = DeltaSubscriber.of(b, 4);
+        final List<Long> requests = new ArrayList<>();
+        s.onSubscribe(new Flow.Subscription() {
+
+            @Override
+            public void cancel() {
+            }
+
+            @Override
+            public void request(final long n) {
+                requests.add(n);
+            }
+        });
+        s.onNext(1L);
+        s.onNext(2L);
+
+        /*
+         * when it is flushed
+         */
+        s.flush();
+
+        /*
+         * the deltas are applied without requesting more
+         */
+        assertEquals(Arrays.asList(1L, 2L), b.merge());
+        assertEquals(Arrays.asList(4L), requests);
+
+    }
+
+    static final class LBuilder extends
+            AbstractMutableBuilder<List<Long>, Long, List<Long>> {
+
+        LBuilder() {
+            super(ArrayList::new, (l, v) -> {
+                l.add(v);
+                return l;
+            }, MutableOptions.defaults(), ArrayList::new);
+        }
+
+    }
+
+    /*
+     * Publishes items synchronously as they are requested, then completes or
+     * fails. Records request sizes and runs a hook at each request.
+     */
+    static final class ListPublisher implements Flow.Publisher<Long> {
+
+        private final Throwable failure;
+
+        private final List<Long> items;
+
+        private final Runnable onRequest;
+
+        final List<Long> requests = new ArrayList<>();
+
+        ListPublisher(final List<Long> items, final Throwable failure,
+                final Runnable onRequest) {
+            this.items = items;
+            this.failure = failure;
+            this.onRequest = onRequest;
+        }
+
+        @Override
+        public void subscribe(final Flow.Subscriber<? super Long> subscriber) {
+            final Iterator<Long> it = this.items.iterator();
+            subscriber.onSubscribe(new Flow.Subscription() {
+
+                private boolean emitting;
+
+                private long demand;
+
+                @Override
+                public void cancel() {
+                }
+
+                @Override
+                public void request(final long n) {
+                    ListPublisher.this.requests.add(n);
+                    ListPublisher.this.onRequest.run();
+                    this.demand += n;
+                    if (this.emitting) {
+                        return;
+                    }
+                    this.emitting = true;
+                    while (this.demand > 0 && it.hasNext()) {
+                        --this.demand;
+                        subscriber.onNext(it.next());
+                    }
+                    if (!it.hasNext()) {
+                        if (ListPublisher.this.failure == null) {
+                            subscriber.onComplete();
+                        } else {
+                            subscriber.onError(ListPublisher.this.failure);
+                        }
+                    }
+                    this.emitting = false;
+                }
+            });
+        }
+
+    }
+
+}
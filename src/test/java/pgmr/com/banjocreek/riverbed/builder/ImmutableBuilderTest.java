@@ -19,12 +19,33 @@ package pgmr.com.banjocreek.riverbed.builder;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.banjocreek.riverbed.builder.AbstractImmutableBuilder;
+import com.banjocreek.riverbed.builder.BuildCache;
+import com.banjocreek.riverbed.builder.DeltaAccumulator;
+import com.banjocreek.riverbed.builder.HistoryDiff;
+import com.banjocreek.riverbed.builder.ImmutableOptions;
+import com.banjocreek.riverbed.builder.LineageInterner;
 
 public class ImmutableBuilderTest {
 
@@ -42,6 +63,335 @@ public class ImmutableBuilderTest {
         this.builder = new SBuilder<>(this.rootConstructor, this.constructor);
     }
 
+    @Test
+    public void testBuildAll() {
+
+        /*
+         * given many builders descending from a deep template
+         */
+        final CountingBuilder template = deep(new CountingBuilder(
+                checkpoints(0)), 1000);
+        final List<CountingBuilder> variants = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            variants.add(template.append("v").append(i));
+        }
+        variants.add(template);
+
+        /*
+         * when they are built as a batch
+         */
+        final List<String> built = AbstractImmutableBuilder.buildAll(variants);
+
+        /*
+         * each result matches an individual build and shared deltas are
+         * applied once
+         */
+        assertEquals(1000 + 200, template.count.get());
+        for (int i = 0; i < variants.size(); ++i) {
+            assertEquals(variants.get(i).build(), built.get(i));
+        }
+
+    }
+
+    @Test
+    public void testBuildAsync() throws Exception {
+
+        /*
+         * given a mutated builder
+         */
+        final SBuilder<String, String> b = this.builder.append("Value");
+
+        /*
+         * when it is built asynchronously
+         */
+        final CompletableFuture<String> built = b.buildAsync();
+        final CompletableFuture<String> done = b.doneAsync();
+
+        /*
+         * it produces the synchronous results
+         */
+        assertEquals(b.build(), built.get());
+        assertEquals(b.done(), done.get());
+
+    }
+
+    @Test
+    public void testBuildAsyncSharesComputation() throws Exception {
+
+        /*
+         * given a builder and an executor that holds its tasks
+         */
+        final SBuilder<String, String> b = this.builder.append("Value");
+        final List<Runnable> tasks = new ArrayList<>();
+        final Executor held = tasks::add;
+
+        /*
+         * when it is built asynchronously twice before the build runs
+         */
+        final CompletableFuture<String> f1 = b.buildAsync(held);
+        final CompletableFuture<String> f2 = b.buildAsync(held);
+        f1.cancel(false);
+
+        /*
+         * one build is scheduled and serves the remaining request
+         */
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals("Built: Value", f2.get());
+
+        /*
+         * and a later request starts a new build
+         */
+        b.buildAsync(held);
+        assertEquals(2, tasks.size());
+
+    }
+
+    @Test
+    public void testBuildAllWithoutCheckpoints() {
+
+        /*
+         * given builders from a lineage that cannot copy state
+         */
+        final SBuilder<String, String> b = this.builder.append("a");
+        final List<SBuilder<String, String>> builders = Arrays.asList(
+                b.append("b"), b.append("c"), this.builder);
+
+        /*
+         * when they are built as a batch
+         */
+        final List<String> built = AbstractImmutableBuilder.buildAll(builders);
+
+        /*
+         * each is built individually
+         */
+        assertEquals(Arrays.asList("Built: ab", "Built: ac", "Built: "), built);
+
+    }
+
+    @Test
+    public void testCheckpointInterval() {
+
+        /*
+         * given a checkpointed builder with a long history that has been
+         * built once
+         */
+        final CountingBuilder template = deep(new CountingBuilder(
+                checkpoints(10)), 1000);
+        template.build();
+        final int before = template.count.get();
+
+        /*
+         * when a derived builder is built
+         */
+        final String built = template.append("x").build();
+
+        /*
+         * it replays only the deltas after the nearest checkpoint
+         */
+        assertEquals(deep(this.builder, 1000).append("x").build(), built);
+        assertTrue(template.count.get() - before <= 10);
+
+    }
+
+    @Test
+    public void testCheckpointOnDemand() {
+
+        /*
+         * given a builder with a long history
+         */
+        final CountingBuilder template = deep(new CountingBuilder(
+                checkpoints(0)), 1000);
+
+        /*
+         * when a checkpoint is requested
+         */
+        template.checkpointHere();
+        final int before = template.count.get();
+
+        /*
+         * derived builders replay only their own deltas
+         */
+        final CountingBuilder derived = template.append("x").append("y");
+        assertEquals(template.build() + "xy", derived.build());
+        assertEquals(2, template.count.get() - before);
+
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCheckpointRequiresCopier() {
+
+        /*
+         * given a builder without checkpoints enabled
+         */
+        final SBuilder<String, String> b = this.builder.append("value");
+
+        /*
+         * when a checkpoint is requested, it fails
+         */
+        b.checkpointHere();
+
+    }
+
+    @Test
+    public void testCheckpointsDoNotLeakState() {
+
+        /*
+         * given a checkpointed builder
+         */
+        final CountingBuilder b = new CountingBuilder(checkpoints(1)).append(
+                "a").append("b");
+
+        /*
+         * when sibling builders are derived and built
+         */
+        final String s1 = b.append("c").build();
+        final String s2 = b.append("d").build();
+
+        /*
+         * they are independent of each other
+         */
+        assertEquals("Built: abc", s1);
+        assertEquals("Built: abd", s2);
+        assertEquals("Built: ab", b.build());
+
+    }
+
+    @Test
+    public void testInternedHistoriesShareCacheEntries() {
+
+        /*
+         * given two lineages that intern and cache through shared tables
+         */
+        final BuildCache cache = new BuildCache(100);
+        final ImmutableOptions<StringBuilder, Object> options = ImmutableOptions
+                .<StringBuilder, Object> defaults().withCache(cache)
+                .withInterning(new LineageInterner());
+        final Function<StringBuilder, String> constructor = String::valueOf;
+        final SBuilder<String, String> r1 = new SBuilder<>(constructor,
+                constructor, options);
+        final SBuilder<String, String> r2 = new SBuilder<>(constructor,
+                constructor, options);
+
+        /*
+         * when identical histories are built independently
+         */
+        final String first = r1.append("a").append(1).build();
+        final String second = r2.append("a").append(1).build();
+
+        /*
+         * the second build is served from the cache
+         */
+        assertSame(first, second);
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(r1.append("a").lineageKey(), r2.append("a").lineageKey());
+        assertNotEquals(r1.append("a").lineageKey(), r2.append("b")
+                .lineageKey());
+
+    }
+
+    @Test
+    public void testInterningSeparatesStateHandling() {
+
+        /*
+         * given lineages with and without a state copier interning through
+         * the same table
+         */
+        final LineageInterner interner = new LineageInterner();
+        final SBuilder<String, String> checkpointed = new SBuilder<>(
+                this.rootConstructor, this.constructor, ImmutableOptions
+                        .<StringBuilder, Object> defaults()
+                        .withCheckpoints(StringBuilder::new, 1)
+                        .withInterning(interner));
+        final SBuilder<String, String> plain = new SBuilder<>(
+                this.rootConstructor, this.constructor, ImmutableOptions
+                        .<StringBuilder, Object> defaults()
+                        .withInterning(interner));
+
+        /*
+         * when identical histories are built in both, checkpointed first
+         */
+        final String first = checkpointed.append("a").append("b").done();
+        final String second = plain.append("a").append("b").done();
+
+        /*
+         * the plain lineage neither shares the history nor its checkpoints
+         */
+        assertEquals(first, second);
+        assertNotSame(checkpointed.append("a").lineageKey(), plain
+                .append("a").lineageKey());
+
+    }
+
+    @Test
+    public void testLongHistory() {
+
+        /*
+         * given a builder with a very long history
+         */
+        final SBuilder<String, String> b = deep(this.builder, 1000000);
+
+        /*
+         * when it is built
+         */
+        final String built = b.done();
+
+        /*
+         * it folds the entire history
+         */
+        assertEquals(1000000, built.length());
+        assertTrue(built.startsWith("0123456789"));
+
+    }
+
+    @Test
+    public void testCoalescing() {
+
+        /*
+         * given a builder that coalesces adjacent deltas
+         */
+        final CountingBuilder b = new CountingBuilder(ImmutableOptions
+                .<StringBuilder, Object> defaults().withCoalescing(
+                        ImmutableBuilderTest::coalesceText));
+
+        /*
+         * when a chain of deltas is built
+         */
+        final CountingBuilder b1 = b.append("a").append("b").append("c");
+        final CountingBuilder b2 = b1.append("d");
+
+        /*
+         * deltas are combined without affecting earlier builders
+         */
+        assertEquals("abc", b1.done());
+        assertEquals("abcd", b2.done());
+        assertEquals(2, b.count.get());
+
+    }
+
+    @Test
+    public void testParallelFold() {
+
+        /*
+         * given a builder that folds in parallel by concatenating deltas
+         */
+        final SBuilder<String, String> b = new SBuilder<>(
+                this.rootConstructor, this.constructor, ImmutableOptions
+                        .<StringBuilder, Object> defaults().withParallelFold(
+                                ForkJoinPool.commonPool(), Concatenation::new));
+
+        /*
+         * when a long history is built
+         */
+        final String actual = deep(b, 100000).done();
+
+        /*
+         * it produces the same result as a sequential fold
+         */
+        assertEquals(deep(this.builder, 100000).done(), actual);
+
+    }
+
     @Test
     public void testConstructor() {
 
@@ -64,6 +414,110 @@ public class ImmutableBuilderTest {
 
     }
 
+    @Test
+    public void testDiff() {
+
+        /*
+         * given a deep template and builders branching from it
+         */
+        final SBuilder<String, String> template = deep(this.builder, 100000);
+        final SBuilder<String, String> left = template.append("a").append("b");
+        final SBuilder<String, String> right = template.append("c");
+
+        /*
+         * when they are compared
+         */
+        final HistoryDiff<Object> diff = left.diff(right);
+
+        /*
+         * the tails after the template are returned
+         */
+        assertEquals(Arrays.asList("a", "b"), diff.sourceTail());
+        assertEquals(Arrays.asList("c"), diff.targetTail());
+        assertFalse(diff.isAppendOnly());
+        assertTrue(template.diff(left).isAppendOnly());
+        assertEquals(Arrays.asList("a", "b"), template.diff(left).targetTail());
+        assertEquals(Arrays.asList(), left.diff(left).targetTail());
+        assertEquals(Arrays.asList("c"), this.builder.append("c")
+                .diff(this.builder).sourceTail());
+
+    }
+
+    @Test
+    public void testDiffRandomTree() {
+
+        /*
+         * given a random tree of builders, each with a unique delta
+         */
+        assertDiffsRandomTree(this.builder);
+
+    }
+
+    @Test
+    public void testIndexedDiffRandomTree() {
+
+        /*
+         * given a random tree of builders with indexed histories
+         */
+        assertDiffsRandomTree(new SBuilder<>(this.rootConstructor,
+                this.constructor, ImmutableOptions
+                        .<StringBuilder, Object> defaults()
+                        .withIndexedHistory()));
+
+    }
+
+    private static void assertDiffsRandomTree(
+            final SBuilder<String, String> root) {
+
+        final Random r = new Random(11);
+        final List<SBuilder<String, String>> nodes = new ArrayList<>();
+        final List<List<Integer>> paths = new ArrayList<>();
+        nodes.add(root);
+        paths.add(Collections.emptyList());
+        for (int i = 0; i < 3000; ++i) {
+            final int parent = r.nextInt(nodes.size()) / 2 + nodes.size() / 2;
+            nodes.add(nodes.get(parent).append(i));
+            final List<Integer> path = new ArrayList<>(paths.get(parent));
+            path.add(i);
+            paths.add(path);
+        }
+
+        /*
+         * when random pairs are compared
+         */
+        for (int i = 0; i < 1000; ++i) {
+            final int a = r.nextInt(nodes.size());
+            final int b = r.nextInt(nodes.size());
+            final HistoryDiff<Object> diff = nodes.get(a).diff(nodes.get(b));
+
+            /*
+             * the tails follow the longest common prefix
+             */
+            final List<Integer> pa = paths.get(a);
+            final List<Integer> pb = paths.get(b);
+            int common = 0;
+            while (common < pa.size() && common < pb.size()
+                    && pa.get(common).equals(pb.get(common))) {
+                ++common;
+            }
+            assertEquals(pa.subList(common, pa.size()), diff.sourceTail());
+            assertEquals(pb.subList(common, pb.size()), diff.targetTail());
+        }
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDiffRequiresLineage() {
+
+        /*
+         * given builders from different roots, comparing them fails
+         */
+        this.builder.append("a").diff(
+                new SBuilder<>(this.rootConstructor, this.constructor)
+                        .append("a"));
+
+    }
+
     @Test
     public void testImmutable() {
 
@@ -85,6 +539,42 @@ public class ImmutableBuilderTest {
 
     }
 
+    @Test
+    public void testMemoizedResults() throws Exception {
+
+        /*
+         * given a memoizing builder
+         */
+        final CountingBuilder b = new CountingBuilder(ImmutableOptions
+                .<StringBuilder, Object> defaults().withMemoizedResults())
+                .append("a").append("b");
+
+        /*
+         * when it is built concurrently and repeatedly
+         */
+        final ExecutorService pool = Executors.newFixedThreadPool(8);
+        final List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 32; ++i) {
+            futures.add(pool.submit(b::build));
+        }
+        final String first = b.build();
+        for (final Future<String> f : futures) {
+            assertSame(first, f.get());
+        }
+        pool.shutdown();
+
+        /*
+         * the result is computed once and shared
+         */
+        assertEquals("Built: ab", first);
+        assertEquals(2, b.count.get());
+        assertEquals("ab", b.done());
+        assertEquals(4, b.count.get());
+        assertSame(b.done(), b.done());
+        assertEquals(4, b.count.get());
+
+    }
+
     @Test
     public void testMutate() {
 
@@ -106,6 +596,116 @@ public class ImmutableBuilderTest {
 
     }
 
+    @Test
+    public void testNestedBuildsFoldParentOnce() {
+
+        /*
+         * given a deep parent checkpointed when a child builder is opened
+         */
+        final CountingBuilder parent = deep(new CountingBuilder(
+                checkpoints(0)), 1000);
+        parent.checkpointHere();
+        final SBuilder<String, CountingBuilder> child = new SBuilder<>(
+                sb -> parent.append(sb).build(), sb -> parent.append(sb));
+        final int opened = parent.count.get();
+
+        /*
+         * when the child is built repeatedly
+         */
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(child.append(i).build().endsWith("" + i));
+        }
+
+        /*
+         * the parent's history is not folded again
+         */
+        assertEquals(1000, opened);
+        assertEquals(1000 + 100, parent.count.get());
+
+    }
+
+    @Test
+    public void testNestedBuildsCheckpointParent() {
+
+        /*
+         * given a deep coalescing parent that is not checkpointed, ending
+         * with a delta the child's delta coalesces with
+         */
+        final CountingBuilder parent = deep(
+                new CountingBuilder(checkpoints(0).withCoalescing(
+                        ImmutableBuilderTest::coalesceText)), 1000).append("p");
+        final SBuilder<String, CountingBuilder> child = new SBuilder<>(
+                sb -> parent.append(sb).build(), sb -> parent.append(sb));
+
+        /*
+         * when the child is built repeatedly
+         */
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(child.append(i).build().endsWith("p" + i));
+        }
+
+        /*
+         * the parent's history is folded by the first build and once more to
+         * checkpoint it when the second build shows it is reused
+         */
+        assertEquals(2 * 1000 + 10, parent.count.get());
+
+    }
+
+    @Test
+    public void testNestedBuildOnceKeepsNoState() {
+
+        /*
+         * given a deep parent that is not checkpointed, with a child builder
+         * built once
+         */
+        final CountingBuilder parent = deep(new CountingBuilder(
+                checkpoints(0)), 1000);
+        final SBuilder<String, CountingBuilder> child = new SBuilder<>(
+                sb -> parent.append(sb).build(), sb -> parent.append(sb));
+        assertTrue(child.append("c").build().endsWith("c"));
+
+        /*
+         * when the parent is derived from outside a build
+         */
+        parent.count.set(0);
+        parent.append("x").build();
+
+        /*
+         * the whole history is replayed, since no checkpoint was kept
+         */
+        assertEquals(1000 + 1, parent.count.get());
+
+    }
+
+    @Test
+    public void testNestedBuildsKeepParentCheckpoint() {
+
+        /*
+         * given a deep coalescing parent checkpointed when a child builder is
+         * opened, ending with a delta the child's delta could coalesce with
+         */
+        final CountingBuilder parent = deep(
+                new CountingBuilder(checkpoints(0).withCoalescing(
+                        ImmutableBuilderTest::coalesceText)), 1000).append("p");
+        parent.checkpointHere();
+        final SBuilder<String, CountingBuilder> child = new SBuilder<>(
+                sb -> parent.append(sb).build(), sb -> parent.append(sb));
+
+        /*
+         * when the child is built repeatedly
+         */
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(child.append(i).build().endsWith("p" + i));
+        }
+
+        /*
+         * each build replays only the child's delta
+         */
+        assertEquals(1001 + 10, parent.count.get());
+
+    }
+
     @Test
     public void testRootConstructor() {
 
@@ -128,6 +728,61 @@ public class ImmutableBuilderTest {
 
     }
 
+    @Test
+    public void testVariants() {
+
+        /*
+         * given a deep checkpointing template
+         */
+        final CountingBuilder template = deep(new CountingBuilder(
+                checkpoints(0)), 1000);
+
+        /*
+         * when variants are built from a parallel stream of tails
+         */
+        final List<String> built = template
+                .variants(
+                        IntStream.range(0, 100).parallel()
+                                .mapToObj(i -> Arrays.asList("v", i)))
+                .collect(Collectors.toList());
+
+        /*
+         * each variant matches a derived build and the template is folded
+         * once
+         */
+        assertEquals(100, built.size());
+        assertEquals(1000 + 200, template.count.get());
+        for (int i = 0; i < built.size(); ++i) {
+            assertEquals(template.append("v").append(i).build(), built.get(i));
+        }
+
+    }
+
+    @Test
+    public void testVariantsWithoutCopier() {
+
+        /*
+         * given a template that cannot copy state
+         */
+        final SBuilder<String, String> template = this.builder.append("a");
+
+        /*
+         * when variants are built
+         */
+        final List<String> built = template
+                .variants(Stream.of(Arrays.asList("b"), Arrays.asList()))
+                .collect(Collectors.toList());
+
+        /*
+         * each is built from scratch
+         */
+        assertEquals(Arrays.asList("Built: ab", "Built: a"), built);
+        assertEquals(Arrays.asList("Built: x"),
+                this.builder.variants(Stream.of(Arrays.asList("x")))
+                        .collect(Collectors.toList()));
+
+    }
+
     static class SBuilder<R, P> extends
             AbstractImmutableBuilder<StringBuilder, Object, R, P> {
         public SBuilder(final Function<StringBuilder, R> builder,
@@ -136,6 +791,13 @@ public class ImmutableBuilderTest {
                     constructor);
         }
 
+        public SBuilder(final Function<StringBuilder, R> builder,
+                final Function<StringBuilder, P> constructor,
+                final ImmutableOptions<StringBuilder, Object> options) {
+            super(StringBuilder::new, StringBuilder::append, options, builder,
+                    constructor);
+        }
+
         private SBuilder(final SBuilder<R, P> prev, final Object delta) {
             super(prev, delta);
         }
@@ -144,6 +806,111 @@ public class ImmutableBuilderTest {
             return new SBuilder<>(this, obj);
         }
 
+        void checkpointHere() {
+            checkpoint();
+        }
+
+    }
+
+    /*
+     * options that keep checkpoints with the given interval
+     */
+    static ImmutableOptions<StringBuilder, Object> checkpoints(
+            final int interval) {
+        return ImmutableOptions.<StringBuilder, Object> defaults()
+                .withCheckpoints(StringBuilder::new, interval);
+    }
+
+    /*
+     * coalescer that joins adjacent text
+     */
+    static Optional<Object> coalesceText(final Object o1, final Object o2) {
+        return o1 instanceof CharSequence && o2 instanceof CharSequence
+                ? Optional.of("" + o1 + o2) : Optional.empty();
+    }
+
+    static SBuilder<String, String> deep(
+            final SBuilder<String, String> b, final int n) {
+        SBuilder<String, String> rval = b;
+        for (int i = 0; i < n; ++i) {
+            rval = rval.append(i % 10);
+        }
+        return rval;
+    }
+
+    static CountingBuilder deep(final CountingBuilder b, final int n) {
+        CountingBuilder rval = b;
+        for (int i = 0; i < n; ++i) {
+            rval = rval.append(i % 10);
+        }
+        return rval;
+    }
+
+    /*
+     * accumulates deltas by concatenating their text
+     */
+    static final class Concatenation implements DeltaAccumulator<Object> {
+
+        private final StringBuilder text = new StringBuilder();
+
+        Concatenation(final Object first) {
+            this.text.append(first);
+        }
+
+        @Override
+        public boolean add(final Object delta) {
+            this.text.append(delta);
+            return true;
+        }
+
+        @Override
+        public boolean addAll(final DeltaAccumulator<Object> later) {
+            this.text.append(((Concatenation) later).text);
+            return true;
+        }
+
+        @Override
+        public Object result() {
+            return this.text.toString();
+        }
+
+    }
+
+    /*
+     * builder that counts mutator invocations, configured by its options
+     */
+    static final class CountingBuilder extends
+            AbstractImmutableBuilder<StringBuilder, Object, String, String> {
+
+        final AtomicInteger count;
+
+        CountingBuilder(final ImmutableOptions<StringBuilder, Object> options) {
+            this(new AtomicInteger(), options);
+        }
+
+        private CountingBuilder(final AtomicInteger count,
+                final ImmutableOptions<StringBuilder, Object> options) {
+            super(StringBuilder::new, (sb, o) -> {
+                count.incrementAndGet();
+                return sb.append(o);
+            }, options, sb -> "Built: " + sb, String::valueOf);
+            this.count = count;
+        }
+
+        private CountingBuilder(final CountingBuilder prev,
+                final Object delta) {
+            super(prev, delta);
+            this.count = prev.count;
+        }
+
+        public CountingBuilder append(final Object obj) {
+            return new CountingBuilder(this, obj);
+        }
+
+        void checkpointHere() {
+            checkpoint();
+        }
+
     }
 
 }
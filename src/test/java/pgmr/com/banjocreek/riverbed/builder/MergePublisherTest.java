@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pgmr.com.banjocreek.riverbed.builder;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.banjocreek.riverbed.builder.AbstractMutableBuilder;
+import com.banjocreek.riverbed.builder.Flow;
+import com.banjocreek.riverbed.builder.MergePublisher;
+import com.banjocreek.riverbed.builder.MutableOptions;
+
+public class MergePublisherTest {
+
+    private ScheduledExecutorService executor;
+
+    @After
+    public void cleanup() {
+        this.executor.shutdownNow();
+    }
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Test(timeout = 10000)
+    public void testBatchWindow() throws Exception {
+
+        /*
+         * given a windowed publisher and a subscriber that has the initial
+         * result
+         */
+        final CountingBuilder b = new CountingBuilder();
+        final MergePublisher<List<Long>> publisher = MergePublisher.of(b, 200,
+                TimeUnit.MILLISECONDS, this.executor);
+        final Recorder r = new Recorder(Long.MAX_VALUE);
+        publisher.subscribe(r);
+        assertEquals(Collections.emptyList(), r.next());
+
+        /*
+         * when a burst of deltas arrives
+         */
+        for (long i = 0; i < 100; ++i) {
+            b.add(i);
+        }
+
+        /*
+         * it is published with a single merge
+         */
+        assertEquals(100, r.next().size());
+        assertEquals(2, b.merges.get());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testClose() throws Exception {
+
+        /*
+         * given a subscriber that has the initial result
+         */
+        final MergePublisher<List<Long>> publisher = MergePublisher.of(
+                new CountingBuilder(), this.executor);
+        final Recorder r = new Recorder(1);
+        publisher.subscribe(r);
+        r.next();
+
+        /*
+         * when the publisher is closed
+         */
+        publisher.close();
+
+        /*
+         * the subscriber completes
+         */
+        assertEquals(Recorder.COMPLETE, r.events.take());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testConflation() throws Exception {
+
+        /*
+         * given a subscriber that has the initial result and no demand
+         */
+        final CountingBuilder b = new CountingBuilder();
+        final MergePublisher<List<Long>> publisher = MergePublisher.of(b,
+                this.executor);
+        final Recorder r = new Recorder(1);
+        publisher.subscribe(r);
+        assertEquals(Collections.emptyList(), r.next());
+
+        /*
+         * when many results are published before it requests more
+         */
+        for (long i = 0; i < 100; ++i) {
+            b.add(i);
+        }
+        settle();
+        r.subscription.request(1);
+
+        /*
+         * it only receives the latest
+         */
+        assertEquals(100, r.next().size());
+        settle();
+        assertTrue(r.events.isEmpty());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testNoPartialBatches() throws Exception {
+
+        /*
+         * given a subscriber
+         */
+        final CountingBuilder b = new CountingBuilder();
+        final MergePublisher<List<Long>> publisher = MergePublisher.of(b,
+                this.executor);
+        final Recorder r = new Recorder(Long.MAX_VALUE);
+        publisher.subscribe(r);
+
+        /*
+         * when batches are applied while results are published
+         */
+        final Thread writer = new Thread(() -> {
+            for (int i = 0; i < 100; ++i) {
+                b.addAll(Arrays.asList(1L, 2L, 3L, 4L, 5L));
+            }
+        });
+        writer.start();
+
+        /*
+         * each result holds whole batches only
+         */
+        int size;
+        do {
+            size = r.next().size();
+            assertEquals(0, size % 5);
+        } while (size < 500);
+        writer.join();
+
+    }
+
+    @Test(timeout = 10000)
+    public void testPublishesChanges() throws Exception {
+
+        /*
+         * given a subscriber that has the initial result
+         */
+        final CountingBuilder b = new CountingBuilder();
+        final MergePublisher<List<Long>> publisher = MergePublisher.of(b,
+                this.executor);
+        final Recorder r = new Recorder(Long.MAX_VALUE);
+        publisher.subscribe(r);
+        assertEquals(Collections.emptyList(), r.next());
+
+        /*
+         * when the builder changes
+         */
+        b.add(1);
+
+        /*
+         * the new result is published
+         */
+        assertEquals(Arrays.asList(1L), r.next());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testRequestMustBePositive() throws Exception {
+
+        /*
+         * given a subscriber
+         */
+        final Recorder r = new Recorder(0);
+        MergePublisher.of(new CountingBuilder(), this.executor).subscribe(r);
+        while (r.subscription == null) {
+            settle();
+        }
+
+        /*
+         * when it requests nothing
+         */
+        r.subscription.request(0);
+
+        /*
+         * it fails
+         */
+        assertTrue(r.events.take() instanceof IllegalArgumentException);
+
+    }
+
+    /*
+     * wait until the executor ran everything submitted so far, twice, so that
+     * work submitted by that work has run too
+     */
+    private void settle() throws Exception {
+        this.executor.submit(() -> {
+        }).get();
+        this.executor.submit(() -> {
+        }).get();
+    }
+
+    static final class CountingBuilder extends
+            AbstractMutableBuilder<List<Long>, Long, List<Long>> {
+
+        final AtomicInteger merges;
+
+        CountingBuilder() {
+            this(new AtomicInteger());
+        }
+
+        private CountingBuilder(final AtomicInteger merges) {
+            super(ArrayList::new, (l, v) -> {
+                l.add(v);
+                return l;
+            }, MutableOptions.defaults(), l -> {
+                merges.incrementAndGet();
+                return new ArrayList<>(l);
+            });
+            this.merges = merges;
+        }
+
+        void add(final long v) {
+            apply(v);
+        }
+
+        void addAll(final List<Long> vs) {
+            applyAll(vs);
+        }
+
+    }
+
+    static final class Recorder implements Flow.Subscriber<List<Long>> {
+
+        static final Object COMPLETE = new Object();
+
+        final LinkedBlockingQueue<Object> events = new LinkedBlockingQueue<>();
+
+        private final long initial;
+
+        volatile Flow.Subscription subscription;
+
+        Recorder(final long initial) {
+            this.initial = initial;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Long> next() throws InterruptedException {
+            return (List<Long>) this.events.take();
+        }
+
+        @Override
+        public void onComplete() {
+            this.events.add(COMPLETE);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            this.events.add(throwable);
+        }
+
+        @Override
+        public void onNext(final List<Long> item) {
+            this.events.add(item);
+        }
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (this.initial > 0) {
+                subscription.request(this.initial);
+            }
+        }
+
+    }
+
+}
@@ -19,12 +19,26 @@ package pgmr.com.banjocreek.riverbed.builder;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.banjocreek.riverbed.builder.AbstractMutableBuilder;
+import com.banjocreek.riverbed.builder.Locking;
+import com.banjocreek.riverbed.builder.MutableOptions;
 
 public class MutableBuilderTest {
 
@@ -35,6 +49,343 @@ public class MutableBuilderTest {
         this.builder = new SBuilder<>(String::valueOf);
     }
 
+    @Test
+    public void testCachedMerge() {
+
+        /*
+         * given a builder that caches merges
+         */
+        final LBuilder b = new LBuilder(MutableOptions
+                .<List<Long>, Long> defaults().withCachedMerge());
+        b.add(1);
+
+        /*
+         * when it is merged repeatedly
+         */
+        final List<Long> merged = b.merge();
+
+        /*
+         * the result is reused until the builder changes
+         */
+        assertSame(merged, b.merge());
+        assertEquals(1, b.version());
+        b.add(2);
+        assertEquals(2, b.version());
+        assertNotSame(merged, b.merge());
+        assertEquals(Arrays.asList(1L, 2L), b.merge());
+
+    }
+
+    @Test
+    public void testCombining() throws Exception {
+
+        /*
+         * given a combining builder shared by many producers
+         */
+        final LBuilder b = new LBuilder(MutableOptions
+                .<List<Long>, Long> defaults().withCombining());
+        final int producers = 16;
+        final int perProducer = 5000;
+        final ExecutorService pool = Executors.newFixedThreadPool(producers);
+
+        /*
+         * when each producer applies numbered deltas, merging now and then
+         */
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < producers; ++t) {
+            final long producer = t;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < perProducer; ++i) {
+                    b.add(producer * perProducer + i);
+                    if (i % 1000 == 0) {
+                        assertTrue(b.merge().contains(
+                                producer * perProducer + i));
+                    }
+                }
+            }));
+        }
+        for (final Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+
+        /*
+         * every delta is applied, in order per producer
+         */
+        final List<Long> merged = b.merge();
+        assertEquals(producers * perProducer, merged.size());
+        final long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        for (final long v : merged) {
+            final int producer = (int) (v / perProducer);
+            assertTrue(v > last[producer]);
+            last[producer] = v;
+        }
+
+    }
+
+    @Test
+    public void testFunctionalState() throws Exception {
+
+        /*
+         * given a builder with immutable state shared by several threads
+         */
+        final CountBuilder b = new CountBuilder(MutableOptions
+                .<Integer, Integer> defaults().withFunctionalState());
+        final ExecutorService pool = Executors.newFixedThreadPool(8);
+
+        /*
+         * when every thread applies deltas concurrently
+         */
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 10000; ++i) {
+                    b.add(1);
+                }
+            }));
+        }
+        for (final Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+
+        /*
+         * no delta is lost
+         */
+        assertEquals(Integer.valueOf(80000), b.merge());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testIndependentBuildersDoNotContend() throws Exception {
+
+        /*
+         * given two builders sharing a mutator, one of them blocked inside it
+         */
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final BiFunction<StringBuilder, Object, StringBuilder> mutator = (sb,
+                o) -> {
+            if (o == release) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return sb.append(o);
+        };
+        final SBuilder<String> blocked = new SBuilder<>(mutator,
+                String::valueOf);
+        final SBuilder<String> free = new SBuilder<>(mutator, String::valueOf);
+        final Thread t = new Thread(() -> blocked.append(release));
+        t.start();
+        entered.await();
+
+        /*
+         * when the other builder is used
+         */
+        final String merged = free.append("Hi").merge();
+
+        /*
+         * it proceeds without waiting
+         */
+        assertEquals("Hi", merged);
+        release.countDown();
+        t.join();
+
+    }
+
+    @Test
+    public void testNoLocking() {
+
+        /*
+         * given a thread-confined builder
+         */
+        final LBuilder b = new LBuilder(MutableOptions
+                .<List<Long>, Long> defaults().withLocking(Locking.NONE)
+                .withCombining());
+
+        /*
+         * when deltas are applied
+         */
+        b.add(1);
+        b.add(2);
+
+        /*
+         * it merges them as usual
+         */
+        assertEquals(Arrays.asList(1L, 2L), b.merge());
+
+    }
+
+    @Test(timeout = 10000)
+    public void testStampedLockingSharesMerges() throws Exception {
+
+        /*
+         * given a stamped builder whose constructor waits for a second merge
+         */
+        final CyclicBarrier both = new CyclicBarrier(2);
+        final LBuilder b = new LBuilder(MutableOptions
+                .<List<Long>, Long> defaults().withLocking(Locking.STAMPED),
+                l -> {
+                    try {
+                        both.await(5, TimeUnit.SECONDS);
+                    } catch (final Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return new ArrayList<>(l);
+                });
+        b.add(1);
+
+        /*
+         * when two merges run at once
+         */
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final Future<List<Long>> other = pool.submit(b::merge);
+        final List<Long> mine = b.merge();
+
+        /*
+         * neither waits for the other
+         */
+        assertEquals(Arrays.asList(1L), mine);
+        assertEquals(Arrays.asList(1L), other.get());
+        pool.shutdown();
+
+    }
+
+    @Test(timeout = 10000)
+    public void testSnapshotMergeDoesNotBlockWriters() throws Exception {
+
+        /*
+         * given a snapshot-merging builder whose constructor is stalled
+         */
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final LBuilder b = new LBuilder(MutableOptions
+                .<List<Long>, Long> defaults()
+                .withStateCopier(ArrayList::new).withSnapshotMerge(), l -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return l;
+        });
+        b.add(1);
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final Future<List<Long>> merging = pool.submit(b::merge);
+        entered.await();
+
+        /*
+         * when a delta is applied during the merge
+         */
+        b.add(2);
+
+        /*
+         * it does not wait, and the merge sees the state it started from
+         */
+        release.countDown();
+        assertEquals(Arrays.asList(1L), merging.get());
+        assertEquals(Arrays.asList(1L, 2L), b.merge());
+        pool.shutdown();
+
+    }
+
+    @Test(timeout = 10000)
+    public void testSnapshotMergeCopiesUnderLock() throws Exception {
+
+        /*
+         * given a snapshot-merging builder with a plain copier that is
+         * stalled while it copies
+         */
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final LBuilder b = new LBuilder(MutableOptions
+                .<List<Long>, Long> defaults().withStateCopier(l -> {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new ArrayList<>(l);
+                }).withSnapshotMerge());
+        b.add(1);
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        final Future<List<Long>> merging = pool.submit(b::merge);
+        entered.await();
+
+        /*
+         * when a delta is applied during the copy
+         */
+        final Future<?> adding = pool.submit(() -> b.add(2));
+        Thread.sleep(100);
+
+        /*
+         * it waits for the copy to finish
+         */
+        assertFalse(adding.isDone());
+        release.countDown();
+        assertEquals(Arrays.asList(1L), merging.get());
+        adding.get();
+        assertEquals(Arrays.asList(1L, 2L), b.merge());
+        pool.shutdown();
+
+    }
+
+    @Test(expected = InternalError.class, timeout = 10000)
+    public void testOptimisticCopyPropagatesErrors() throws Exception {
+
+        /*
+         * given a snapshot-merging builder whose optimistic copier first
+         * fails with an error after a delta is applied during the copy
+         */
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final AtomicReference<LBuilder> ref = new AtomicReference<>();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final LBuilder b = new LBuilder(MutableOptions
+                .<List<Long>, Long> defaults().withOptimisticStateCopier(l -> {
+                    if (failed.getAndSet(true)) {
+                        return new ArrayList<>(l);
+                    }
+                    try {
+                        pool.submit(() -> ref.get().add(2)).get();
+                    } catch (final Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    throw new InternalError("copier");
+                }).withSnapshotMerge());
+        ref.set(b);
+        b.add(1);
+
+        /*
+         * when it is merged, the error is not mistaken for an overlapping
+         * copy and retried
+         */
+        try {
+            b.merge();
+        } finally {
+            pool.shutdown();
+        }
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSnapshotMergeRequiresCopier() {
+
+        /*
+         * given options requesting snapshots without a copier, the builder
+         * cannot be created
+         */
+        new LBuilder(MutableOptions.<List<Long>, Long> defaults()
+                .withSnapshotMerge());
+
+    }
+
     @Test
     public void testMutate() {
 
@@ -61,6 +412,12 @@ public class MutableBuilderTest {
             super(StringBuilder::new, StringBuilder::append, constructor);
         }
 
+        public SBuilder(
+                final BiFunction<StringBuilder, Object, StringBuilder> mutator,
+                final Function<StringBuilder, P> constructor) {
+            super(StringBuilder::new, mutator, constructor);
+        }
+
         public SBuilder<P> append(final Object obj) {
             apply(obj);
             return this;
@@ -68,4 +425,38 @@ public class MutableBuilderTest {
 
     }
 
+    static final class CountBuilder extends
+            AbstractMutableBuilder<Integer, Integer, Integer> {
+
+        CountBuilder(final MutableOptions<Integer, Integer> options) {
+            super(() -> 0, Integer::sum, options, Function.identity());
+        }
+
+        void add(final int n) {
+            apply(n);
+        }
+
+    }
+
+    static final class LBuilder extends
+            AbstractMutableBuilder<List<Long>, Long, List<Long>> {
+
+        LBuilder(final MutableOptions<List<Long>, Long> options) {
+            this(options, ArrayList::new);
+        }
+
+        LBuilder(final MutableOptions<List<Long>, Long> options,
+                final Function<List<Long>, List<Long>> constructor) {
+            super(ArrayList::new, (l, v) -> {
+                l.add(v);
+                return l;
+            }, options, constructor);
+        }
+
+        void add(final long v) {
+            apply(v);
+        }
+
+    }
+
 }
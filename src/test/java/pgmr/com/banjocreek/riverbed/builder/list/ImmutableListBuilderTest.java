@@ -19,17 +19,27 @@ package pgmr.com.banjocreek.riverbed.builder.list;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.banjocreek.riverbed.builder.codec.HistoryInput;
+import com.banjocreek.riverbed.builder.codec.HistoryOutput;
+import com.banjocreek.riverbed.builder.codec.ValueCodec;
 import com.banjocreek.riverbed.builder.list.AbstractImmutableListBuilder;
+import com.banjocreek.riverbed.builder.list.ListOptions;
+import com.banjocreek.riverbed.builder.list.ListOpCodec;
 
 public class ImmutableListBuilderTest {
 
@@ -131,6 +141,143 @@ public class ImmutableListBuilderTest {
 
     }
 
+    @Test
+    public void testDerivedBuildersAreIndependent() {
+
+        /*
+         * given a builder with values
+         */
+        final TestBuilder b = this.builder.add("one").add("two");
+
+        /*
+         * when builders are derived from it
+         */
+        final TestBuilder b1 = b.add("three");
+        final TestBuilder b2 = b.addAll(Arrays.asList("four", "five"));
+
+        /*
+         * they do not affect each other or the original
+         */
+        assertEquals(Arrays.asList("one", "two"), b.done());
+        assertEquals(Arrays.asList("one", "two", "three"), b1.done());
+        assertEquals(Arrays.asList("one", "two", "four", "five"), b2.done());
+
+    }
+
+    @Test
+    public void testManyAdds() {
+
+        /*
+         * given a builder
+         */
+        TestBuilder b = this.builder;
+
+        /*
+         * when many values are added
+         */
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            b = b.add(String.valueOf(i));
+            expected.add(String.valueOf(i));
+        }
+
+        /*
+         * it produces the values in order
+         */
+        assertEquals(expected, b.done());
+
+    }
+
+    @Test
+    public void testManyAddsCoalesced() {
+
+        /*
+         * given a coalescing builder with values
+         */
+        final TestBuilder b = new TestBuilder(ListOptions.<String> defaults()
+                .withCoalescing()).add("one").add("two");
+
+        /*
+         * when many values are added to it and to a derived builder
+         */
+        TestBuilder b1 = b;
+        final List<String> expected = new ArrayList<>(Arrays.asList("one",
+                "two"));
+        for (int i = 0; i < 500; ++i) {
+            b1 = b1.add(String.valueOf(i));
+            expected.add(String.valueOf(i));
+        }
+        final TestBuilder b2 = b.clear().add("three");
+
+        /*
+         * each produces its own values in order
+         */
+        assertEquals(expected, b1.done());
+        assertEquals(Arrays.asList("one", "two"), b.done());
+        assertEquals(Arrays.asList("three"), b2.done());
+
+    }
+
+    @Test
+    public void testParallelFold() {
+
+        /*
+         * given a builder that folds in parallel
+         */
+        TestBuilder b = new TestBuilder(ForkJoinPool.commonPool());
+
+        /*
+         * when a long history is built
+         */
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20000; ++i) {
+            if (i % 7000 == 0) {
+                b = b.clear();
+                expected.clear();
+            }
+            b = b.add(String.valueOf(i));
+            expected.add(String.valueOf(i));
+        }
+
+        /*
+         * it produces the values in order
+         */
+        assertEquals(expected, b.done());
+
+    }
+
+    @Test
+    public void testEncodedHistory() throws IOException {
+
+        /*
+         * given a history with appends, nulls and a clear
+         */
+        final TestBuilder b = this.builder.add("a").clear().add(null)
+                .addAll(Arrays.asList("b", "c"));
+
+        /*
+         * when it is written and read back
+         */
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ListOpCodec<String> codec = new ListOpCodec<>(ValueCodec.STRING);
+        try (HistoryOutput out = new HistoryOutput(bytes)) {
+            b.writeHistory(out, codec);
+        }
+        final TestBuilder restored;
+        try (HistoryInput in = new HistoryInput(new ByteArrayInputStream(
+                bytes.toByteArray()))) {
+            restored = new TestBuilder(this.builder, in.readHistory(codec));
+            assertFalse(in.hasNext());
+        }
+
+        /*
+         * the restored builder produces the same list
+         */
+        assertEquals(Arrays.asList(null, "b", "c"), restored.done());
+        assertEquals(b.lineageKey(), restored.lineageKey());
+
+    }
+
     private static final class TestBuilder extends
             AbstractImmutableListBuilder<String, List<String>, List<String>> {
 
@@ -138,11 +285,24 @@ public class ImmutableListBuilderTest {
             super(Function.identity(), Function.identity());
         }
 
+        protected TestBuilder(final ForkJoinPool pool) {
+            this(ListOptions.<String> defaults().withParallelFold(pool));
+        }
+
+        protected TestBuilder(final ListOptions<String> options) {
+            super(Function.identity(), Function.identity(), options);
+        }
+
         private TestBuilder(final TestBuilder b,
                 final UnaryOperator<List<String>> delta) {
             super(b, delta);
         }
 
+        private TestBuilder(final TestBuilder b,
+                final List<UnaryOperator<List<String>>> deltas) {
+            super(b, deltas);
+        }
+
         public TestBuilder clear() {
             return new TestBuilder(this, genClear());
         }
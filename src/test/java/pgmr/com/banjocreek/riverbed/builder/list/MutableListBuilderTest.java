@@ -23,12 +23,14 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.banjocreek.riverbed.builder.list.AbstractMutableListBuilder;
+import com.banjocreek.riverbed.builder.list.ListBatch;
 
 public class MutableListBuilderTest {
 
@@ -110,6 +112,28 @@ public class MutableListBuilderTest {
 
     }
 
+    @Test
+    public void testBatch() {
+
+        /*
+         * given a builder with values
+         */
+        this.builder.add("zero");
+
+        /*
+         * when a batch of operations is applied
+         */
+        this.builder.batch(b -> b.add("gone").clear().add("one")
+                .addAll(Arrays.asList("two", "three")));
+
+        /*
+         * it produces the same list as applying them one by one
+         */
+        final List<String> expected = Arrays.asList("one", "two", "three");
+        assertEquals(expected, this.builder.merge());
+
+    }
+
     @Test
     public void testClear() {
 
@@ -142,6 +166,11 @@ public class MutableListBuilderTest {
             return this;
         }
 
+        TestBuilder batch(final Consumer<ListBatch<String>> body) {
+            doBatch(body);
+            return this;
+        }
+
         TestBuilder add(final String e) {
             doAdd(e);
             return this;
@@ -28,17 +28,41 @@ import java.util.function.Function;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
 import com.banjocreek.riverbed.builder.map.AbstractImmutableMapBuilder;
 import com.banjocreek.riverbed.builder.map.MapDelta;
+import com.banjocreek.riverbed.builder.map.MapOptions;
+import com.banjocreek.riverbed.builder.map.MapState;
 
+@RunWith(Parameterized.class)
 public class ImmutableMapBuilderTest {
 
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> options() {
+        final MapOptions<TestKey, String> hashMap = MapOptions.defaults();
+        final MapOptions<TestKey, String> persistent = hashMap
+                .withState(MapState.PERSISTENT);
+        return Arrays.asList(new Object[][] { { "hash map", hashMap },
+                { "persistent", persistent },
+                { "hash map, coalescing", hashMap.withCoalescing() },
+                { "persistent, coalescing", persistent.withCoalescing() } });
+    }
+
     private TestBuilder empty;
 
+    private final MapOptions<TestKey, String> options;
+
+    public ImmutableMapBuilderTest(final String name,
+            final MapOptions<TestKey, String> options) {
+        this.options = options;
+    }
+
     @Before
     public void setup() {
-        this.empty = new TestBuilder();
+        this.empty = new TestBuilder(this.options);
     }
 
     @Test
@@ -61,6 +85,33 @@ public class ImmutableMapBuilderTest {
 
     }
 
+    @Test
+    public void testChainedValues() {
+
+        /*
+         * given a chain of values, defaults and removals
+         */
+        final TestBuilder b = this.empty.a("A1").b("B").a("A2").defc("C1")
+                .defc("C2").nob().noa();
+
+        /*
+         * when a builder is derived from an intermediate builder
+         */
+        final TestBuilder b1 = this.empty.a("A1").b("B").a("A2").c("C");
+
+        /*
+         * each produces the map of its own chain
+         */
+        final Map<TestKey, String> expected = new HashMap<>();
+        expected.put(TestKey.C, "C2");
+        assertEquals(expected, b.done());
+        expected.put(TestKey.A, "A2");
+        expected.put(TestKey.B, "B");
+        expected.put(TestKey.C, "C");
+        assertEquals(expected, b1.done());
+
+    }
+
     @Test
     public void testConstructParent() {
 
@@ -461,7 +512,7 @@ public class ImmutableMapBuilderTest {
          * others left as specified.
          */
         final Object actual = b1.done();
-        final Object expected = new TestBuilder().a("DA").b("VB").done();
+        final Object expected = this.empty.a("DA").b("VB").done();
 
         assertEquals(expected, actual);
 
@@ -487,7 +538,7 @@ public class ImmutableMapBuilderTest {
          * others left as specified.
          */
         final Object actual = b1.done();
-        final Object expected = new TestBuilder().a("DA").c("VC").done();
+        final Object expected = this.empty.a("DA").c("VC").done();
 
         assertEquals(expected, actual);
 
@@ -598,14 +649,14 @@ public class ImmutableMapBuilderTest {
             extends
             AbstractImmutableMapBuilder<TestKey, String, Map<String, String>, Map<TestKey, String>> {
 
-        public TestBuilder() {
+        public TestBuilder(final MapOptions<TestKey, String> options) {
             super(m -> {
                 final HashMap<String, String> rval = new HashMap<>();
                 m.forEach((k, v) -> {
                     rval.put(String.valueOf(k), String.valueOf(v));
                 });
                 return rval;
-            }, Function.identity());
+            }, Function.identity(), options);
         }
 
         protected TestBuilder(final TestBuilder previous,
@@ -0,0 +1,847 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pgmr.com.banjocreek.riverbed.builder.map;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.banjocreek.riverbed.builder.BuildCache;
+import com.banjocreek.riverbed.builder.LineageInterner;
+import com.banjocreek.riverbed.builder.codec.HistoryInput;
+import com.banjocreek.riverbed.builder.codec.HistoryOutput;
+import com.banjocreek.riverbed.builder.codec.ValueCodec;
+import com.banjocreek.riverbed.builder.map.AbstractImmutableMapBuilder;
+import com.banjocreek.riverbed.builder.map.MapDelta;
+import com.banjocreek.riverbed.builder.map.MapDeltaCodec;
+import com.banjocreek.riverbed.builder.map.MapOptions;
+import com.banjocreek.riverbed.builder.map.MapState;
+import com.banjocreek.riverbed.builder.map.TemplateStore;
+
+public class MapBuilderHistoryTest {
+
+    @Test
+    public void testBuildAll() {
+
+        /*
+         * given sibling builders derived from a persistent template
+         */
+        final TestBuilder template = new TestBuilder(MapState.PERSISTENT)
+                .val("a", "A").def("b", "B").no("c");
+        final List<TestBuilder> siblings = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            siblings.add(template.val("k" + i, "v" + i).no("a"));
+        }
+
+        /*
+         * when they are built as a batch
+         */
+        final List<Map<String, String>> built = AbstractImmutableMapBuilder
+                .buildAll(siblings);
+
+        /*
+         * each result matches an individual build
+         */
+        for (int i = 0; i < siblings.size(); ++i) {
+            assertEquals(siblings.get(i).build(), built.get(i));
+        }
+
+    }
+
+    @Test
+    public void testBuildAllSharesTemplate() {
+
+        /*
+         * given siblings of a long template on a map builder with
+         * checkpoints, with key hashes counted as a measure of work
+         */
+        final AtomicInteger hashes = new AtomicInteger();
+        final CountingKey key = new CountingKey("k", hashes);
+        KeyBuilder template = new KeyBuilder();
+        for (int i = 0; i < 500; ++i) {
+            template = template.val(key, "v" + i).no(key);
+        }
+        final List<KeyBuilder> siblings = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            siblings.add(template.val(new CountingKey("s" + i, hashes), "v"));
+        }
+        hashes.set(0);
+        siblings.get(0).build();
+        final int single = hashes.getAndSet(0);
+
+        /*
+         * when they are built as a batch
+         */
+        final List<Map<CountingKey, String>> built = AbstractImmutableMapBuilder
+                .buildAll(siblings);
+
+        /*
+         * the template is folded once rather than once per sibling
+         */
+        assertEquals(siblings.size(), built.size());
+        assertTrue(hashes.get() < 2 * single);
+
+    }
+
+    @Test
+    public void testCollidingKeys() {
+
+        /*
+         * given keys with identical hash codes
+         */
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+
+        /*
+         * when they are set, removed and reset in a persistent builder
+         */
+        final TestBuilder b = new TestBuilder(MapState.PERSISTENT)
+                .val("Aa", "1").val("BB", "2").def("AaAa", "3")
+                .def("BBBB", "4").no("Aa");
+
+        /*
+         * each key is tracked separately
+         */
+        final Map<String, String> actual = b.build();
+        assertEquals(3, actual.size());
+        assertEquals("2", actual.get("BB"));
+        assertEquals("3", actual.get("AaAa"));
+        assertEquals("4", actual.get("BBBB"));
+        assertEquals("1", b.reset("Aa").val("Aa", "1").build().get("Aa"));
+
+    }
+
+    @Test
+    public void testEncodedHistories() throws IOException {
+
+        /*
+         * given histories using every kind of encodable delta
+         */
+        final TestBuilder root = new TestBuilder(MapState.HASH_MAP);
+        final TestBuilder b1 = root.val("a", "A").def("b", null).no("c")
+                .reset("d").clear().val("a", "X").resetAll();
+        final TestBuilder b2 = root.val("a", "A").val("b", "B").no("a");
+
+        /*
+         * when they are written to a channel and read back
+         */
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final MapDeltaCodec<String, String> codec = new MapDeltaCodec<>(
+                ValueCodec.STRING, ValueCodec.STRING);
+        try (HistoryOutput out = HistoryOutput.to(Channels
+                .newChannel(bytes))) {
+            b1.writeHistory(out, codec);
+            b2.writeHistory(out, codec);
+        }
+        final List<TestBuilder> restored = new ArrayList<>();
+        try (HistoryInput in = HistoryInput.from(Channels
+                .newChannel(new ByteArrayInputStream(bytes.toByteArray())))) {
+            while (in.hasNext()) {
+                restored.add(new TestBuilder(root, in.readHistory(codec)));
+            }
+        }
+
+        /*
+         * the restored builders have the same histories and results
+         */
+        assertEquals(2, restored.size());
+        assertEquals(b1.lineageKey(), restored.get(0).lineageKey());
+        assertEquals(b2.lineageKey(), restored.get(1).lineageKey());
+        assertEquals(b2.build(), restored.get(1).build());
+
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptEntryCountIsRejected() throws IOException {
+
+        /*
+         * given an encoded history whose entry count is corrupted to a
+         * negative value
+         */
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final MapDeltaCodec<String, String> codec = new MapDeltaCodec<>(
+                ValueCodec.STRING, ValueCodec.STRING);
+        try (HistoryOutput h = new HistoryOutput(out)) {
+            new TestBuilder(MapState.HASH_MAP).val("a", "A").writeHistory(h,
+                    codec);
+        }
+        final byte[] bytes = out.toByteArray();
+        int count = 8;
+        while (bytes[count] != 0 || bytes[count + 1] != 0
+                || bytes[count + 2] != 0 || bytes[count + 3] != 1) {
+            ++count;
+        }
+        bytes[count] = (byte) 0x80;
+
+        /*
+         * when it is read, it fails
+         */
+        try (HistoryInput in = new HistoryInput(new ByteArrayInputStream(
+                bytes))) {
+            in.readHistory(codec);
+        }
+
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptStringLengthIsRejected() throws IOException {
+
+        /*
+         * given an encoded string claiming far more bytes than follow
+         */
+        final byte[] bytes = { 0x7f, -1, -1, -1, 'a' };
+
+        /*
+         * when it is read, it fails without reserving the claimed length
+         */
+        ValueCodec.STRING.read(new DataInputStream(new ByteArrayInputStream(
+                bytes)));
+
+    }
+
+    @Test(expected = IOException.class)
+    public void testNegativeStringLengthIsRejected() throws IOException {
+
+        /*
+         * given an encoded string with a negative length
+         */
+        final byte[] bytes = { -1, -1, -1, -2, 'a' };
+
+        /*
+         * when it is read, it fails
+         */
+        ValueCodec.STRING.read(new DataInputStream(new ByteArrayInputStream(
+                bytes)));
+
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownRecordTagIsRejected() throws IOException {
+
+        /*
+         * given a history stream whose end marker is corrupted
+         */
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new HistoryOutput(out).close();
+        final byte[] bytes = out.toByteArray();
+        bytes[bytes.length - 1] = 7;
+
+        /*
+         * when it is read, it fails rather than reporting the end
+         */
+        try (HistoryInput in = new HistoryInput(new ByteArrayInputStream(
+                bytes))) {
+            in.hasNext();
+        }
+
+    }
+
+    @Test(expected = IOException.class)
+    public void testEncodingRejectsUpdates() throws IOException {
+
+        /*
+         * given a history with an update
+         */
+        final TestBuilder b = new TestBuilder(MapState.HASH_MAP).update("a",
+                String::trim);
+
+        /*
+         * when it is written, it fails
+         */
+        b.writeHistory(new HistoryOutput(new ByteArrayOutputStream()),
+                new MapDeltaCodec<>(ValueCodec.STRING, ValueCodec.STRING));
+
+    }
+
+    @Test
+    public void testInternedHistories() {
+
+        /*
+         * given two lineages interning through the same table
+         */
+        final LineageInterner interner = new LineageInterner();
+        final MapOptions<String, String> options = MapOptions
+                .<String, String> defaults().withInterning(interner);
+        final TestBuilder r1 = new TestBuilder(options);
+        final TestBuilder r2 = new TestBuilder(options);
+
+        /*
+         * when identical histories are constructed independently
+         */
+        final TestBuilder b1 = r1.val("a", "A").no("b").def("c", "C");
+        final TestBuilder b2 = r2.val("a", "A").no("b").def("c", "C");
+
+        /*
+         * they share one history
+         */
+        assertSame(b1.lineageKey(), b2.lineageKey());
+        assertEquals(3, interner.size());
+        assertEquals(b1.build(), b2.build());
+
+    }
+
+    @Test
+    public void testInternedHistoriesShareCacheEntries() {
+
+        /*
+         * given two stock map roots that intern and cache through shared
+         * tables
+         */
+        final BuildCache cache = new BuildCache(100);
+        final MapOptions<String, String> options = MapOptions
+                .<String, String> defaults().withCache(cache)
+                .withInterning(new LineageInterner());
+        final TestBuilder r1 = new TestBuilder(options);
+        final TestBuilder r2 = new TestBuilder(options);
+
+        /*
+         * when identical histories are built independently
+         */
+        final Map<String, String> first = r1.val("a", "A").no("b").build();
+        final Map<String, String> second = r2.val("a", "A").no("b").build();
+
+        /*
+         * the second build is served from the cache
+         */
+        assertSame(first, second);
+        assertEquals(1, cache.stats().missCount());
+        assertEquals(1, cache.stats().hitCount());
+
+    }
+
+    @Test
+    public void testInterningSeparatesStateModels() {
+
+        /*
+         * given persistent and hash map lineages interning through the same
+         * table
+         */
+        final LineageInterner interner = new LineageInterner();
+        final TestBuilder persistent = new TestBuilder(MapOptions
+                .<String, String> defaults().withState(MapState.PERSISTENT)
+                .withInterning(interner));
+        final TestBuilder hashed = new TestBuilder(MapOptions
+                .<String, String> defaults().withInterning(interner));
+
+        /*
+         * when identical histories are built in both
+         */
+        final Map<String, String> first = persistent.val("a", "A")
+                .def("b", "B").build();
+        final Map<String, String> second = hashed.val("a", "A")
+                .def("b", "B").build();
+
+        /*
+         * each keeps its own history and state
+         */
+        assertEquals(first, second);
+        assertNotSame(persistent.val("a", "A").lineageKey(), hashed.val("a",
+                "A").lineageKey());
+
+    }
+
+    @Test
+    public void testLineageKeys() {
+
+        /*
+         * given independently constructed histories
+         */
+        final TestBuilder b1 = new TestBuilder(MapState.HASH_MAP)
+                .val("a", "A").def("b", "B").no("c").reset("d");
+        final TestBuilder b2 = new TestBuilder(MapState.PERSISTENT)
+                .val("a", "A").def("b", "B").no("c").reset("d");
+        final TestBuilder b3 = new TestBuilder(MapState.HASH_MAP)
+                .val("a", "A").def("b", "X").no("c").reset("d");
+
+        /*
+         * when their keys are compared
+         */
+        final Object key = b1.lineageKey();
+
+        /*
+         * equal histories have equal keys and different ones do not
+         */
+        assertEquals(key, b2.lineageKey());
+        assertEquals(key.hashCode(), b2.lineageKey().hashCode());
+        assertNotEquals(key, b3.lineageKey());
+        assertNotEquals(key, b1.val("e", "E").lineageKey());
+        assertEquals(new TestBuilder(MapState.HASH_MAP).lineageKey(),
+                new TestBuilder(MapState.PERSISTENT).lineageKey());
+
+    }
+
+    @Test
+    public void testMatchesHashMapState() {
+
+        /*
+         * given the same random history applied to hash map and persistent
+         * builders
+         */
+        final Random r = new Random(42);
+        TestBuilder hashed = new TestBuilder(MapState.HASH_MAP);
+        TestBuilder persistent = new TestBuilder(MapState.PERSISTENT);
+        final List<TestBuilder> versions = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            final String k = "k" + r.nextInt(300);
+            final String v = "v" + i;
+            switch (r.nextInt(5)) {
+            case 0:
+                hashed = hashed.def(k, v);
+                persistent = persistent.def(k, v);
+                break;
+            case 1:
+                hashed = hashed.no(k);
+                persistent = persistent.no(k);
+                break;
+            case 2:
+                hashed = hashed.reset(k);
+                persistent = persistent.reset(k);
+                break;
+            default:
+                hashed = hashed.val(k, v);
+                persistent = persistent.val(k, v);
+            }
+            if (i % 500 == 0) {
+                versions.add(hashed);
+                versions.add(persistent);
+            }
+        }
+
+        /*
+         * when both are built
+         */
+        final Map<String, String> expected = hashed.build();
+
+        /*
+         * they produce the same result, and so do earlier versions
+         */
+        assertEquals(expected, persistent.build());
+        for (int i = 0; i < versions.size(); i += 2) {
+            assertEquals(versions.get(i).build(), versions.get(i + 1).build());
+        }
+
+    }
+
+    @Test
+    public void testMemoizedResults() {
+
+        /*
+         * given a memoizing map builder
+         */
+        final TestBuilder b = new TestBuilder(MapOptions
+                .<String, String> defaults().withMemoizedResults()).val("a",
+                "A");
+
+        /*
+         * when it is built repeatedly
+         */
+        final Map<String, String> built = b.build();
+
+        /*
+         * it returns the same result
+         */
+        assertSame(built, b.build());
+        assertNotSame(built, b.val("b", "B").build());
+
+    }
+
+    @Test
+    public void testParallelFoldOfOneKey() {
+
+        /*
+         * given a long history of values for one key, linked without
+         * coalescing, in sequential and parallel builders
+         */
+        final int n = 300000;
+        final TestBuilder sequential = new TestBuilder(MapState.HASH_MAP)
+                .vals("k", n);
+        final TestBuilder parallel = new TestBuilder(MapOptions
+                .<String, String> defaults().withParallelFold(
+                        ForkJoinPool.commonPool())).vals("k", n);
+
+        /*
+         * when both are built
+         */
+        final Map<String, String> actual = parallel.build();
+
+        /*
+         * the parallel fold produces the same result
+         */
+        assertEquals(sequential.build(), actual);
+
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+
+        /*
+         * given the same long random history applied to sequential and
+         * parallel builders
+         */
+        final Random r = new Random(7);
+        TestBuilder sequential = new TestBuilder(MapState.HASH_MAP);
+        TestBuilder parallel = new TestBuilder(MapOptions
+                .<String, String> defaults().withParallelFold(
+                        ForkJoinPool.commonPool()));
+        for (int i = 0; i < 50000; ++i) {
+            final String k = "k" + r.nextInt(1000);
+            final String v = "v" + i;
+            final int op = r.nextInt(100);
+            if (op < 2) {
+                sequential = sequential.no(k);
+                parallel = parallel.no(k);
+            } else if (op < 4) {
+                sequential = sequential.reset(k);
+                parallel = parallel.reset(k);
+            } else if (op < 30) {
+                sequential = sequential.def(k, v);
+                parallel = parallel.def(k, v);
+            } else {
+                sequential = sequential.val(k, v);
+                parallel = parallel.val(k, v);
+            }
+        }
+
+        /*
+         * when both are built
+         */
+        final Map<String, String> actual = parallel.build();
+
+        /*
+         * they produce the same result
+         */
+        assertEquals(sequential.build(), actual);
+
+    }
+
+    @Test
+    public void testVariantsFoldTemplateOnce() {
+
+        /*
+         * given a long template on a map builder with checkpoints, with key
+         * hashes counted as a measure of work
+         */
+        final AtomicInteger hashes = new AtomicInteger();
+        final CountingKey key = new CountingKey("k", hashes);
+        KeyBuilder b = new KeyBuilder();
+        for (int i = 0; i < 500; ++i) {
+            b = b.val(key, "v" + i).no(key);
+        }
+        final KeyBuilder template = b;
+        hashes.set(0);
+        template.build();
+        final int single = hashes.getAndSet(0);
+
+        /*
+         * when variants of it are built
+         */
+        final List<Map<CountingKey, String>> built = template.variants(
+                IntStream.range(0, 10).mapToObj(
+                        i -> template.tail(new CountingKey("s" + i, hashes),
+                                "v"))).collect(Collectors.toList());
+
+        /*
+         * the template is folded once rather than once per variant
+         */
+        assertEquals(10, built.size());
+        assertTrue(hashes.get() < 2 * single);
+
+    }
+
+    @Test
+    public void testSiblingsAreIndependent() {
+
+        /*
+         * given a persistent template that has been built
+         */
+        final TestBuilder template = new TestBuilder(MapState.PERSISTENT)
+                .val("a", "A").def("b", "B");
+        template.build();
+
+        /*
+         * when siblings are derived from it
+         */
+        final TestBuilder s1 = template.val("c", "C");
+        final TestBuilder s2 = template.no("a");
+
+        /*
+         * they do not see each other's changes
+         */
+        assertEquals(3, s1.build().size());
+        assertEquals(1, s2.build().size());
+        assertEquals(2, template.build().size());
+
+    }
+
+    @Test
+    public void testTemplateStore() throws IOException {
+
+        /*
+         * given templates with values, defaults, removals and resets
+         */
+        final TestBuilder root = new TestBuilder(MapState.HASH_MAP);
+        final Map<String, TestBuilder> templates = new HashMap<>();
+        templates.put("t1", root.def("a", "1").def("b", "2").val("a", "X")
+                .no("b").val("c", null));
+        templates.put("t2", root.val("x", "y").clear().def("d", "D")
+                .reset("d"));
+
+        /*
+         * when they are stored and the store is reopened
+         */
+        final Path file = Files.createTempFile("templates", ".bin");
+        try {
+            TemplateStore.write(file, templates, ValueCodec.STRING,
+                    ValueCodec.STRING);
+            final TemplateStore<String, String> store = TemplateStore.open(
+                    file, ValueCodec.STRING, ValueCodec.STRING);
+
+            /*
+             * builders created from the stored state behave like the
+             * originals in either state model, including after further
+             * changes
+             */
+            assertEquals(templates.keySet(), store.names());
+            assertFalse(store.snapshot("t3").isPresent());
+            for (final String name : store.names()) {
+                for (final MapState state : MapState.values()) {
+                    final TestBuilder original = templates.get(name);
+                    final TestBuilder restored = new TestBuilder(MapOptions
+                            .<String, String> defaults()
+                            .withTemplate(store.snapshot(name).get())
+                            .withState(state).withMemoizedResults());
+                    assertEquals(original.build(), restored.build());
+                    assertEquals(original.reset("a").reset("b").build(),
+                            restored.reset("a").reset("b").build());
+                    assertEquals(original.resetAll().build(), restored
+                            .resetAll().build());
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+    }
+
+    @Test
+    public void testTemplateStoreKeepsTemplateBase() throws IOException {
+
+        /*
+         * given a builder derived from a stored template, with an update
+         * that a later value replaces
+         */
+        final Path file = Files.createTempFile("templates", ".bin");
+        final Path copy = Files.createTempFile("templates", ".bin");
+        try {
+            TemplateStore.write(file, Collections.singletonMap("base",
+                    new TestBuilder(MapState.HASH_MAP).val("a", "A").val("b",
+                            "B")), ValueCodec.STRING, ValueCodec.STRING);
+            final TestBuilder derived = new TestBuilder(MapOptions
+                    .<String, String> defaults().withTemplate(
+                            TemplateStore.open(file, ValueCodec.STRING,
+                                    ValueCodec.STRING).snapshot("base").get()))
+                    .update("c", String::trim).val("c", "C").no("a");
+
+            /*
+             * when the derived builder is stored and reopened
+             */
+            TemplateStore.write(copy, Collections.singletonMap("derived",
+                    derived), ValueCodec.STRING, ValueCodec.STRING);
+            final TestBuilder restored = new TestBuilder(MapOptions
+                    .<String, String> defaults().withTemplate(
+                            TemplateStore.open(copy, ValueCodec.STRING,
+                                    ValueCodec.STRING).snapshot("derived")
+                                    .get()));
+
+            /*
+             * it keeps the template's state as well as its own changes
+             */
+            final Map<String, String> expected = new HashMap<>();
+            expected.put("b", "B");
+            expected.put("c", "C");
+            assertEquals(expected, derived.build());
+            assertEquals(expected, restored.build());
+        } finally {
+            Files.delete(file);
+            Files.delete(copy);
+        }
+
+    }
+
+    @Test(expected = IOException.class)
+    public void testTemplateStoreRejectsUpdates() throws IOException {
+
+        /*
+         * given a template with an update
+         */
+        final TestBuilder b = new TestBuilder(MapState.PERSISTENT).val("a",
+                " A ").update("a", String::trim);
+
+        /*
+         * when it is stored, it fails
+         */
+        final Path file = Files.createTempFile("templates", ".bin");
+        try {
+            TemplateStore.write(file, Collections.singletonMap("t", b),
+                    ValueCodec.STRING, ValueCodec.STRING);
+        } finally {
+            Files.delete(file);
+        }
+
+    }
+
+    /*
+     * key that counts how often it is hashed
+     */
+    static final class CountingKey {
+
+        private final AtomicInteger hashes;
+
+        private final String name;
+
+        CountingKey(final String name, final AtomicInteger hashes) {
+            this.name = name;
+            this.hashes = hashes;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof CountingKey
+                    && this.name.equals(((CountingKey) obj).name);
+        }
+
+        @Override
+        public int hashCode() {
+            this.hashes.incrementAndGet();
+            return this.name.hashCode();
+        }
+
+    }
+
+    /*
+     * stock map builder over counting keys
+     */
+    static final class KeyBuilder
+            extends
+            AbstractImmutableMapBuilder<CountingKey, String, Map<CountingKey, String>, Map<CountingKey, String>> {
+
+        KeyBuilder() {
+            super(Function.identity(), Function.identity(), MapOptions
+                    .<CountingKey, String> defaults().withCheckpoints(0));
+        }
+
+        private KeyBuilder(final KeyBuilder previous,
+                final MapDelta<CountingKey, String> delta) {
+            super(previous, delta);
+        }
+
+        KeyBuilder no(final CountingKey k) {
+            return new KeyBuilder(this, genRemove(k));
+        }
+
+        List<MapDelta<CountingKey, String>> tail(final CountingKey k,
+                final String v) {
+            return Collections.singletonList(genValues(k, v));
+        }
+
+        KeyBuilder val(final CountingKey k, final String v) {
+            return new KeyBuilder(this, genValues(k, v));
+        }
+
+    }
+
+    static final class TestBuilder
+            extends
+            AbstractImmutableMapBuilder<String, String, Map<String, String>, Map<String, String>> {
+
+        TestBuilder(final MapOptions<String, String> options) {
+            super(Function.identity(), Function.identity(), options);
+        }
+
+        TestBuilder(final MapState state) {
+            this(MapOptions.<String, String> defaults().withState(state));
+        }
+
+        private TestBuilder(final TestBuilder previous,
+                final MapDelta<String, String> delta) {
+            super(previous, delta);
+        }
+
+        TestBuilder(final TestBuilder previous,
+                final List<MapDelta<String, String>> deltas) {
+            super(previous, deltas);
+        }
+
+        TestBuilder clear() {
+            return new TestBuilder(this, genClear());
+        }
+
+        TestBuilder def(final String k, final String v) {
+            return new TestBuilder(this, genDefaults(k, v));
+        }
+
+        TestBuilder no(final String k) {
+            return new TestBuilder(this, genRemove(k));
+        }
+
+        TestBuilder reset(final String k) {
+            return new TestBuilder(this, genReset(k));
+        }
+
+        TestBuilder resetAll() {
+            return new TestBuilder(this, genReset());
+        }
+
+        TestBuilder update(final String k,
+                final Function<? super String, ? extends String> f) {
+            return new TestBuilder(this, genUpdates(k, f));
+        }
+
+        TestBuilder val(final String k, final String v) {
+            return new TestBuilder(this, genValues(k, v));
+        }
+
+        TestBuilder vals(final String k, final int n) {
+            final List<MapDelta<String, String>> deltas = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                deltas.add(genValues(k, "v" + i));
+            }
+            return new TestBuilder(this, deltas);
+        }
+
+    }
+
+}
@@ -24,12 +24,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.banjocreek.riverbed.builder.MutableOptions;
 import com.banjocreek.riverbed.builder.map.AbstractMutableMapBuilder;
+import com.banjocreek.riverbed.builder.map.MapBatch;
 
 public class MutableMapBuilderTest {
 
@@ -40,6 +43,196 @@ public class MutableMapBuilderTest {
         this.empty = new TestBuilder();
     }
 
+    @Test
+    public void testCombining() throws Exception {
+
+        /*
+         * given a combining builder fed by several threads
+         */
+        final TestBuilder b = new TestBuilder(MutableOptions.defaults()
+                .withCombining());
+        final Thread[] producers = new Thread[8];
+        for (int t = 0; t < producers.length; ++t) {
+            producers[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; ++i) {
+                    b.defa("DA").b("VB").nob();
+                }
+                b.c("VC");
+            });
+            producers[t].start();
+        }
+
+        /*
+         * when all of them are done
+         */
+        for (final Thread t : producers) {
+            t.join();
+        }
+
+        /*
+         * the merge reflects each thread's deltas in order
+         */
+        final HashMap<TestKey, String> expected = new HashMap<>();
+        expected.put(TestKey.A, "DA");
+        expected.put(TestKey.C, "VC");
+        assertEquals(expected, b.merge());
+
+    }
+
+    @Test
+    public void testSnapshotMerge() throws Exception {
+
+        /*
+         * given a snapshot-merging builder with a writer running
+         */
+        final TestBuilder b = new TestBuilder(MutableOptions.defaults()
+                .withSnapshotMerge());
+        b.defa("DA");
+        final Thread writer = new Thread(() -> {
+            for (int i = 0; i < 20000; ++i) {
+                b.b("V" + i).nob();
+            }
+            b.c("VC");
+        });
+        writer.start();
+
+        /*
+         * when it is merged concurrently
+         */
+        while (writer.isAlive()) {
+            final Map<TestKey, String> merged = b.merge();
+
+            /*
+             * each merge is a consistent state
+             */
+            assertEquals("DA", merged.get(TestKey.A));
+        }
+        writer.join();
+        final HashMap<TestKey, String> expected = new HashMap<>();
+        expected.put(TestKey.A, "DA");
+        expected.put(TestKey.C, "VC");
+        assertEquals(expected, b.merge());
+
+    }
+
+    @Test
+    public void testStriped() throws Exception {
+
+        /*
+         * given a striped builder fed by several threads
+         */
+        final TestBuilder b = new TestBuilder(MutableOptions.defaults(), 4);
+        final Thread[] producers = new Thread[8];
+        for (int t = 0; t < producers.length; ++t) {
+            producers[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; ++i) {
+                    b.defa("DA").b("VB").no(Arrays.asList(TestKey.B,
+                            TestKey.C));
+                }
+                b.c("VC");
+            });
+            producers[t].start();
+        }
+
+        /*
+         * when all of them are done
+         */
+        for (final Thread t : producers) {
+            t.join();
+        }
+
+        /*
+         * the merge reflects each thread's deltas in order
+         */
+        final HashMap<TestKey, String> expected = new HashMap<>();
+        expected.put(TestKey.A, "DA");
+        expected.put(TestKey.C, "VC");
+        assertEquals(expected, b.merge());
+
+    }
+
+    @Test
+    public void testStripedMatchesUnstriped() {
+
+        /*
+         * given the same deltas posted to a striped and a plain builder
+         */
+        final TestBuilder striped = new TestBuilder(MutableOptions.defaults()
+                .withCachedMerge(), 2);
+        final TestBuilder plain = new TestBuilder();
+        for (final TestBuilder b : Arrays.asList(striped, plain)) {
+            final HashMap<TestKey, String> defaults = new HashMap<>();
+            defaults.put(TestKey.A, "DA");
+            defaults.put(TestKey.B, "DB");
+            b.def(defaults).c("VC").no(Arrays.asList(TestKey.A, TestKey.C))
+                    .reset().updb(v -> v + "!").a("VA");
+        }
+
+        /*
+         * when they are merged
+         */
+        final Map<TestKey, String> merged = striped.merge();
+
+        /*
+         * the results agree, also after a barrier
+         */
+        assertEquals(plain.merge(), merged);
+        assertSame(merged, striped.merge());
+        assertEquals(plain.clear().c("VC").merge(), striped.clear().c("VC")
+                .merge());
+
+    }
+
+    @Test
+    public void testBatch() {
+
+        /*
+         * given the same operations applied one by one and as a batch
+         */
+        final TestBuilder single = new TestBuilder().defa("DA").defb("DB")
+                .a("VA").b("VB").c("VC").noa().no(TestKey.B).reseta()
+                .upd(TestKey.A, v -> v + "!").c("VC2");
+        final TestBuilder batched = new TestBuilder(MutableOptions.defaults()
+                .withCombining());
+
+        /*
+         * when the batch is applied
+         */
+        batched.batch(b -> b.defaults(TestKey.A, "DA")
+                .defaults(TestKey.B, "DB").values(TestKey.A, "VA")
+                .values(TestKey.B, "VB").values(TestKey.C, "VC")
+                .remove(TestKey.A).remove(TestKey.B).reset(TestKey.A)
+                .updates(TestKey.A, v -> v + "!").values(TestKey.C, "VC2"));
+
+        /*
+         * both produce the same map, with coalesced deltas
+         */
+        assertEquals(single.merge(), batched.merge());
+        assertEquals(6, batched.version());
+
+    }
+
+    @Test
+    public void testBatchClear() {
+
+        /*
+         * given a builder with values
+         */
+        final TestBuilder b = new TestBuilder().defa("DA").b("VB");
+
+        /*
+         * when a batch clears and adds values
+         */
+        b.batch(m -> m.values(TestKey.C, "VC").clear().values(TestKey.A,
+                "VA"));
+
+        /*
+         * only the values after the clear remain
+         */
+        assertEquals(Collections.singletonMap(TestKey.A, "VA"), b.merge());
+
+    }
+
     @Test
     public void testClear() {
 
@@ -576,6 +769,15 @@ public class MutableMapBuilderTest {
             super(Function.identity());
         }
 
+        public TestBuilder(final MutableOptions<?, ?> options) {
+            super(Function.identity(), options);
+        }
+
+        public TestBuilder(final MutableOptions<?, ?> options,
+                final int stripes) {
+            super(Function.identity(), options, stripes);
+        }
+
         public TestBuilder a(final String v) {
             doValues(TestKey.A, v);
             return this;
@@ -591,6 +793,12 @@ public class MutableMapBuilderTest {
             return this;
         }
 
+        public TestBuilder batch(
+                final Consumer<MapBatch<TestKey, String>> body) {
+            doBatch(body);
+            return this;
+        }
+
         public TestBuilder clear() {
             doClear();
             return this;
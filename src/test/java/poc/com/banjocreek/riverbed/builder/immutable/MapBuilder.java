@@ -25,6 +25,7 @@ import java.util.function.Function;
 import java.util.function.Supplier;
 
 import com.banjocreek.riverbed.builder.AbstractImmutableBuilder;
+import com.banjocreek.riverbed.builder.ImmutableOptions;
 
 public final class MapBuilder<R, P>
         extends
@@ -32,6 +33,10 @@ public final class MapBuilder<R, P>
 
     private static final Supplier<Map<String, String>> INITIALIZER = HashMap::new;
 
+    private static final ImmutableOptions<Map<String, String>, Map<String, String>> OPTIONS = ImmutableOptions
+            .<Map<String, String>, Map<String, String>> defaults()
+            .withCheckpoints(HashMap::new, 0);
+
     private static final BiFunction<Map<String, String>, Map<String, String>, Map<String, String>> MUTATOR;
 
     static {
@@ -53,7 +58,7 @@ public final class MapBuilder<R, P>
 
     private MapBuilder(final Function<Map<String, String>, R> builder,
             final Function<Map<String, String>, P> constructor) {
-        super(INITIALIZER, MUTATOR, builder, constructor);
+        super(INITIALIZER, MUTATOR, OPTIONS, builder, constructor);
     }
 
     private MapBuilder(final MapBuilder<R, P> previous,
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package poc.com.banjocreek.riverbed.builder.immutable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import com.banjocreek.riverbed.builder.map.AbstractImmutableMapBuilder;
+import com.banjocreek.riverbed.builder.map.MapDelta;
+import com.banjocreek.riverbed.builder.map.MapOptions;
+
+/**
+ * Build time of a long history of values for one key, folded sequentially
+ * and in parallel. The parallel fold should keep pace with the sequential
+ * one rather than degrade with history length.
+ */
+public class ParallelFoldBenchmark {
+
+    public static void main(final String[] args) {
+
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+        final Builder sequential = new Builder(MapOptions.defaults()).values(n);
+        final Builder parallel = new Builder(MapOptions
+                .<String, String> defaults().withParallelFold(
+                        ForkJoinPool.commonPool())).values(n);
+        for (int round = 0; round < 5; ++round) {
+            final long sequentialTime = time(sequential);
+            final long parallelTime = time(parallel);
+            System.out.printf(
+                    "%,d deltas: sequential %,8d us  parallel %,8d us%n", n,
+                    sequentialTime / 1000, parallelTime / 1000);
+        }
+
+    }
+
+    private static long time(final Builder b) {
+        final long start = System.nanoTime();
+        b.build();
+        return System.nanoTime() - start;
+    }
+
+    static final class Builder
+            extends
+            AbstractImmutableMapBuilder<String, String, Map<String, String>, Map<String, String>> {
+
+        Builder(final MapOptions<String, String> options) {
+            super(Function.identity(), Function.identity(), options);
+        }
+
+        private Builder(final Builder previous,
+                final List<MapDelta<String, String>> deltas) {
+            super(previous, deltas);
+        }
+
+        /*
+         * derive a builder with n values for one key, linked without
+         * coalescing
+         */
+        Builder values(final int n) {
+            final List<MapDelta<String, String>> deltas = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                deltas.add(genValues("k", "v" + i));
+            }
+            return new Builder(this, deltas);
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) Greg Wiley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License") under
+ * one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for information regarding copyright
+ * ownership. You may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package poc.com.banjocreek.riverbed.builder.mutable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.Function;
+
+import com.banjocreek.riverbed.builder.map.AbstractMutableMapBuilder;
+
+/**
+ * Throughput of independent map builders, one per thread. Builders of the
+ * same class share their mutator, so a shared monitor would keep throughput
+ * flat as threads are added; with per-builder locking it grows with the
+ * number of cores.
+ */
+public class ContentionBenchmark {
+
+    private static final int BATCH = 1024;
+
+    private static final String[] KEYS = new String[64];
+
+    private static final int OPS = 4 * 1024 * 1024;
+
+    static {
+        for (int i = 0; i < KEYS.length; ++i) {
+            KEYS[i] = "k" + i;
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+
+        final int max = args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+                .getRuntime().availableProcessors();
+        run(1);
+        double base = 0;
+        for (int threads = 1; threads <= max; threads *= 2) {
+            final double rate = run(threads);
+            if (threads == 1) {
+                base = rate;
+            }
+            System.out.printf("%3d threads: %,14.0f ops/s  scaling %.2f%n",
+                    threads, rate, rate / base);
+        }
+
+    }
+
+    private static double run(final int threads) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        final List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            final Thread w = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int i = 0; i < OPS; i += BATCH) {
+                    final Builder b = new Builder();
+                    for (int j = 0; j < BATCH; ++j) {
+                        b.put(KEYS[j & 63], "v");
+                    }
+                    b.merge();
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        start.await();
+        final long began = System.nanoTime();
+        for (final Thread w : workers) {
+            w.join();
+        }
+        final long elapsed = System.nanoTime() - began;
+        return (double) OPS * threads * 1e9 / elapsed;
+    }
+
+    static final class Builder extends
+            AbstractMutableMapBuilder<String, String, Map<String, String>> {
+
+        Builder() {
+            super(Function.identity());
+        }
+
+        void put(final String k, final String v) {
+            doValues(k, v);
+        }
+
+    }
+
+}